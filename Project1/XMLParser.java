@@ -5,6 +5,8 @@ public class XMLParser {
     private XMLElement root;
     private String currentFile;
     private Map<String, String> namespaceMap = new HashMap<>();
+    private final StringBuilder entityBuffer = new StringBuilder();
+    private static final int MAX_ENTITY_LENGTH = 10;
 
     public void open(String filename) throws IOException {
         currentFile = filename;
@@ -173,11 +175,72 @@ public class XMLParser {
     }
 
     private String decodeXMLEntities(String text) {
-        return text.replace("&lt;", "<")
-                  .replace("&gt;", ">")
-                  .replace("&amp;", "&")
-                  .replace("&quot;", "\"")
-                  .replace("&apos;", "'");
+        int amp = text.indexOf('&');
+        if (amp == -1) {
+            return text;
+        }
+
+        StringBuilder decoded = entityBuffer;
+        decoded.setLength(0);
+        decoded.append(text, 0, amp);
+        int i = amp;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (c != '&') {
+                decoded.append(c);
+                i++;
+                continue;
+            }
+
+            int semicolon = text.indexOf(';', i + 1);
+            if (semicolon == -1 || semicolon - i > MAX_ENTITY_LENGTH) {
+                decoded.append(c);
+                i++;
+                continue;
+            }
+
+            int codePoint = entityCodePoint(text, i + 1, semicolon);
+            if (codePoint == -1) {
+                decoded.append(c);
+                i++;
+            } else {
+                decoded.appendCodePoint(codePoint);
+                i = semicolon + 1;
+            }
+        }
+        return decoded.toString();
+    }
+
+    private int entityCodePoint(String text, int start, int end) {
+        int length = end - start;
+        if (length > 1 && text.charAt(start) == '#') {
+            boolean hex = text.charAt(start + 1) == 'x' || text.charAt(start + 1) == 'X';
+            int digits = hex ? start + 2 : start + 1;
+            if (digits == end) {
+                return -1;
+            }
+            int codePoint = 0;
+            for (int i = digits; i < end; i++) {
+                int digit = Character.digit(text.charAt(i), hex ? 16 : 10);
+                if (digit == -1) {
+                    return -1;
+                }
+                codePoint = codePoint * (hex ? 16 : 10) + digit;
+                if (codePoint > Character.MAX_CODE_POINT) {
+                    return -1;
+                }
+            }
+            if (codePoint == 0 || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+                return -1;
+            }
+            return codePoint;
+        }
+        if (text.startsWith("lt", start) && length == 2) return '<';
+        if (text.startsWith("gt", start) && length == 2) return '>';
+        if (text.startsWith("amp", start) && length == 3) return '&';
+        if (text.startsWith("quot", start) && length == 4) return '"';
+        if (text.startsWith("apos", start) && length == 4) return '\'';
+        return -1;
     }
 
     public void save() throws IOException {
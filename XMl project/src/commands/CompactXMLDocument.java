@@ -0,0 +1,62 @@
+package commands;
+
+/**
+ * Документ, чието дърво е в компактно хранилище (XMLNodeStore) вместо в
+ * XMLElement обекти. Коренът и всички елементи, които командите получават,
+ * са изгледи към хранилището.
+ *
+ * Търсенето по ID използва самото хранилище: автоматичното ID дава номера
+ * на възела, а XML атрибутите "id" се индексират при парсването. Затова
+ * register() и unregister() не са нужни и не правят нищо.
+ *
+ * Документ, отворен с XMLDocumentArena, може да се използва до второто
+ * следващо отваряне със същата арена; след това хранилището му съдържа
+ * друг документ и методите му хвърлят IllegalStateException.
+ *
+ * Пример за употреба:
+ * <pre>
+ * XMLDocument document = new CompactXMLParser().parseDocument("huge.xml");
+ * XMLElement element = document.findById("auto_42");
+ * </pre>
+ */
+public class CompactXMLDocument extends XMLDocument {
+    private final XMLNodeStore store;
+    private final int generation;
+
+    CompactXMLDocument(XMLNodeStore store) {
+        super(new CompactXMLElement(store, 0), store.ids());
+        this.store = store;
+        this.generation = store.generation();
+    }
+
+    /**
+     * @return броят на възлите в хранилището, включително изтритите
+     */
+    public int size() {
+        return store().size();
+    }
+
+    @Override
+    public XMLElement findById(String id) {
+        if (id == null) {
+            return null;
+        }
+        int node = store().findById(id);
+        return node == XMLNodeStore.NONE ? null : new CompactXMLElement(store, node);
+    }
+
+    private XMLNodeStore store() {
+        if (store.generation() != generation) {
+            throw new IllegalStateException("Document has been replaced by a newer open");
+        }
+        return store;
+    }
+
+    @Override
+    public void register(XMLElement element) {
+    }
+
+    @Override
+    public void unregister(XMLElement element) {
+    }
+}
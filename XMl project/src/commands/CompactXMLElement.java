@@ -0,0 +1,232 @@
+package commands;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Изглед към възел на XMLNodeStore през интерфейса на XMLElement. Изгледът
+ * пази само хранилището и номера на възела; всички методи четат и пишат
+ * направо в масивите, така че изгледите се създават при поискване и не
+ * се пазят. Два изгледа към един и същ възел са равни (equals).
+ *
+ * Разлики от XMLElement:
+ * - getAttributes() връща копие само за четене; атрибутите се променят със
+ *   setAttribute() и removeAttribute()
+ * - getChildren() връща списък, в който може да се премахва (възелът се
+ *   откача от дървото) и да се добавя накрая
+ * - addChild() копира подадения елемент и поддървото му в хранилището;
+ *   след това промените трябва да минават през новия изглед
+ * - родителят се определя от addChild(), затова setParent() не прави нищо
+ *
+ * Ако хранилището е от XMLDocumentArena и вече съдържа друг документ,
+ * всички методи хвърлят IllegalStateException.
+ */
+final class CompactXMLElement extends XMLElement {
+    private final XMLNodeStore store;
+    private final int node;
+    private final int generation;
+
+    CompactXMLElement(XMLNodeStore store, int node) {
+        this.store = store;
+        this.node = node;
+        this.generation = store.generation();
+    }
+
+    @Override
+    public String getId() {
+        return store().id(node);
+    }
+
+    @Override
+    public String getTag() {
+        return store().tag(node);
+    }
+
+    @Override
+    public String getTextContent() {
+        return store().text(node);
+    }
+
+    @Override
+    public void setTextContent(String text) {
+        store().setText(node, text);
+    }
+
+    @Override
+    public void setAttribute(String key, String value) {
+        store().setAttribute(node, key, value);
+    }
+
+    @Override
+    public String getAttribute(String key) {
+        return store().attribute(node, key);
+    }
+
+    @Override
+    public String removeAttribute(String key) {
+        return store().removeAttribute(node, key);
+    }
+
+    @Override
+    public Map<String, String> getAttributes() {
+        return Collections.unmodifiableMap(store().attributes(node));
+    }
+
+    @Override
+    public void addChild(XMLElement child) {
+        copy(node, child);
+    }
+
+    @Override
+    public List<XMLElement> getChildren() {
+        return new ChildList();
+    }
+
+    @Override
+    public XMLElement getParent() {
+        int parent = store().parent(node);
+        return parent == XMLNodeStore.NONE ? null : new CompactXMLElement(store, parent);
+    }
+
+    @Override
+    public void setParent(XMLElement parent) {
+    }
+
+    @Override
+    public XMLElement findById(String targetId) {
+        for (int n = node; n != XMLNodeStore.NONE; n = store().nextInDocumentOrder(n, node)) {
+            if (store().id(n).equals(targetId)) {
+                return new CompactXMLElement(store, n);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<XMLElement> getChildrenByTag(String tag) {
+        List<XMLElement> result = new ArrayList<>();
+        String symbol = tag.intern();
+        for (int child = store().firstChild(node); child != XMLNodeStore.NONE; child = store().nextSibling(child)) {
+            if (store().tag(child) == symbol) {
+                result.add(new CompactXMLElement(store, child));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<XMLElement> getDescendantsByTag(String tag) {
+        List<XMLElement> result = new ArrayList<>();
+        String symbol = tag.intern();
+        for (int n = store().nextInDocumentOrder(node, node); n != XMLNodeStore.NONE; n = store().nextInDocumentOrder(n, node)) {
+            if (store().tag(n) == symbol) {
+                result.add(new CompactXMLElement(store, n));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof CompactXMLElement
+                && ((CompactXMLElement) other).store == store
+                && ((CompactXMLElement) other).node == node
+                && ((CompactXMLElement) other).generation == generation;
+    }
+
+    /**
+     * @return хранилището, ако все още съдържа документа на този изглед
+     */
+    private XMLNodeStore store() {
+        if (store.generation() != generation) {
+            throw new IllegalStateException("Element " + node + " belongs to a document that has been replaced");
+        }
+        return store;
+    }
+
+    @Override
+    public int hashCode() {
+        return node;
+    }
+
+    /**
+     * Копира елемента и поддървото му като последно дете на parent.
+     * Автоматичното ID на елемента се запазва; елемент, създаден извън
+     * документ, получава ново от документа.
+     *
+     * @return номерът на новия възел
+     */
+    private int copy(int parent, XMLElement element) {
+        String id = element.getId();
+        int autoId = id.startsWith("auto_") ? Integer.parseInt(id.substring(5)) : store().ids().next();
+        int copy = store().appendChild(parent, element.getTag(), autoId);
+        for (Map.Entry<String, String> attribute : element.getAttributes().entrySet()) {
+            if (!attribute.getKey().equals("id") || !attribute.getValue().equals(id)) {
+                store().setAttribute(copy, attribute.getKey(), attribute.getValue());
+            }
+        }
+        store().setText(copy, element.getTextContent());
+        for (XMLElement child : element.getChildren()) {
+            copy(copy, child);
+        }
+        return copy;
+    }
+
+    /**
+     * Децата към момента на създаване на списъка. Премахването откача
+     * възела от хранилището; добавя се само в края.
+     */
+    private final class ChildList extends AbstractList<XMLElement> implements RandomAccess {
+        private int[] children = new int[4];
+        private int size;
+
+        ChildList() {
+            for (int child = store().firstChild(node); child != XMLNodeStore.NONE; child = store().nextSibling(child)) {
+                if (size == children.length) {
+                    children = Arrays.copyOf(children, size * 2);
+                }
+                children[size++] = child;
+            }
+        }
+
+        @Override
+        public XMLElement get(int index) {
+            if (index >= size) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+            }
+            return new CompactXMLElement(store(), children[index]);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public XMLElement remove(int index) {
+            XMLElement removed = get(index);
+            store().detach(children[index]);
+            System.arraycopy(children, index + 1, children, index, size - index - 1);
+            size--;
+            modCount++;
+            return removed;
+        }
+
+        @Override
+        public void add(int index, XMLElement element) {
+            if (index != size) {
+                throw new UnsupportedOperationException("Children can only be added at the end");
+            }
+            if (size == children.length) {
+                children = Arrays.copyOf(children, size * 2);
+            }
+            children[size++] = copy(node, element);
+            modCount++;
+        }
+    }
+}
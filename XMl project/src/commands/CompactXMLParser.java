@@ -0,0 +1,205 @@
+package commands;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Парсва XML направо в компактно хранилище (XMLNodeStore): вместо обект с
+ * HashMap и ArrayList за всеки елемент се пазят няколко int в паралелни
+ * масиви. Документът заема няколко пъти по-малко памет, а обхождането
+ * минава през последователни масиви.
+ *
+ * Съдържанието е същото като при SINGLE_PASS: текст само за елементи без
+ * деца, изрязан и с "\n" за край на ред, без атрибутите xmlns и със
+ * същите автоматични ID.
+ *
+ * Пример за употреба:
+ * <pre>
+ * CompactXMLDocument document = new CompactXMLParser().parseDocument("huge.xml");
+ * XMLElement root = document.getRoot();
+ * </pre>
+ *
+ * С new CompactXMLParser(true) колоните, текстът и стойностите на
+ * атрибутите се пазят в директни буфери извън heap-а (OFF_HEAP). Тогава
+ * размерът на документа се ограничава от -XX:MaxDirectMemorySize, а не от
+ * -Xmx, и garbage collector-ът не обхожда данните му.
+ *
+ * Ако парсването получи XMLDocumentArena, хранилището се взема от нея и
+ * масивите му не се съкращават до размера на документа, за да се
+ * използват отново при следващото отваряне.
+ *
+ * Текстът и стойностите на атрибутите се копират като UTF-8 байтове от
+ * курсора в преизползвани масиви и оттам в хранилището. Извън heap-а
+ * така не се създава String за тях.
+ */
+public class CompactXMLParser {
+    private static final int INITIAL_DEPTH = 32;
+    private static final int INITIAL_VALUE_SIZE = 256;
+
+    private final boolean offHeap;
+    private byte[] text = new byte[INITIAL_VALUE_SIZE];
+    private int textLength;
+    private byte[] value = new byte[INITIAL_VALUE_SIZE];
+
+    public CompactXMLParser() {
+        this(false);
+    }
+
+    /**
+     * @param offHeap true, ако хранилището трябва да е извън heap-а
+     */
+    public CompactXMLParser(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Парсва файл, като го чете през картографирани прозорци, както при MAPPED.
+     *
+     * @param filename път до XML файла
+     * @return документът
+     * @throws IOException ако файлът не може да бъде прочетен или съдържа невалиден XML
+     */
+    public CompactXMLDocument parseDocument(String filename) throws IOException {
+        return parseDocument(filename, null);
+    }
+
+    /**
+     * Парсва файл в хранилище от арената.
+     *
+     * @param filename път до XML файла
+     * @param arena арената или null за ново хранилище
+     * @return документът
+     * @throws IOException ако файлът не може да бъде прочетен или съдържа невалиден XML
+     */
+    public CompactXMLDocument parseDocument(String filename, XMLDocumentArena arena) throws IOException {
+        try (XMLEventCursor cursor = XMLEventCursor.open(filename)) {
+            return parseDocument(cursor, arena);
+        }
+    }
+
+    /**
+     * Парсва документ, кодиран в UTF-8, от байтовете между position и limit на буфера.
+     *
+     * @param input байтовете на документа
+     * @return документът
+     * @throws IOException ако XML не е добре форматиран
+     */
+    public CompactXMLDocument parseDocument(ByteBuffer input) throws IOException {
+        return parseDocument(new XMLEventCursor(input));
+    }
+
+    /**
+     * Строи хранилището от всички оставащи събития на курсора.
+     *
+     * @param cursor курсор, позициониран преди първото събитие
+     * @return документът
+     * @throws IOException ако XML не е добре форматиран
+     */
+    public CompactXMLDocument parseDocument(XMLEventCursor cursor) throws IOException {
+        return parseDocument(cursor, null);
+    }
+
+    private CompactXMLDocument parseDocument(XMLEventCursor cursor, XMLDocumentArena arena) throws IOException {
+        XMLNodeStore store = arena != null ? arena.acquire(offHeap) : new XMLNodeStore(offHeap);
+        int[] open = new int[INITIAL_DEPTH];
+        int[] lastChild = new int[INITIAL_DEPTH];
+        int depth = 0;
+        textLength = 0;
+        while (true) {
+            switch (cursor.next()) {
+                case START_ELEMENT:
+                    int parent = depth > 0 ? open[depth - 1] : XMLNodeStore.NONE;
+                    int previous = depth > 0 ? lastChild[depth - 1] : XMLNodeStore.NONE;
+                    int node = store.add(parent, previous, cursor.getName());
+                    if (depth > 0) {
+                        lastChild[depth - 1] = node;
+                    }
+                    if (depth == open.length) {
+                        open = Arrays.copyOf(open, depth * 2);
+                        lastChild = Arrays.copyOf(lastChild, depth * 2);
+                    }
+                    open[depth] = node;
+                    lastChild[depth] = XMLNodeStore.NONE;
+                    depth++;
+                    textLength = 0;
+                    break;
+                case ATTRIBUTE:
+                    if (!cursor.isNamespaceDeclaration()) {
+                        int length = cursor.getAttributeValueByteCount();
+                        if (length > value.length) {
+                            value = new byte[Math.max(length, value.length * 2)];
+                        }
+                        cursor.copyAttributeValue(value, 0);
+                        store.addAttribute(cursor.getAttributeName(), value, 0, length);
+                    }
+                    break;
+                case TEXT:
+                    if (lastChild[depth - 1] == XMLNodeStore.NONE) {
+                        collectText(cursor);
+                    }
+                    break;
+                case END_ELEMENT:
+                    depth--;
+                    if (lastChild[depth] == XMLNodeStore.NONE) {
+                        setText(store, open[depth]);
+                    }
+                    textLength = 0;
+                    break;
+                case NEED_INPUT:
+                    throw new IllegalStateException("Cursor needs more input; use IncrementalXMLParser");
+                case END_DOCUMENT:
+                    store.finish(new IDManager(), arena == null);
+                    CompactXMLDocument document = new CompactXMLDocument(store);
+                    if (arena != null) {
+                        arena.opened(store);
+                    }
+                    return document;
+            }
+        }
+    }
+
+    /**
+     * Събира байтовете на текста на текущия елемент, докато той няма деца,
+     * както при SINGLE_PASS. Частите, разделени от коментари или CDATA, се
+     * добавят една след друга.
+     */
+    private void collectText(XMLEventCursor cursor) {
+        if (textLength == 0 && cursor.isWhitespace()) {
+            return;
+        }
+        int length = cursor.getTextByteCount();
+        if (textLength + length > text.length) {
+            text = Arrays.copyOf(text, Math.max(textLength + length, text.length * 2));
+        }
+        cursor.copyText(text, textLength);
+        textLength += length;
+    }
+
+    /**
+     * Записва събрания текст без празните символи в двата края (както
+     * String.trim(); в UTF-8 байтовете до ' ' са точно тези символи).
+     */
+    private void setText(XMLNodeStore store, int node) {
+        int from = 0;
+        int to = textLength;
+        while (from < to && (text[from] & 0xFF) <= ' ') {
+            from++;
+        }
+        while (to > from && (text[to - 1] & 0xFF) <= ' ') {
+            to--;
+        }
+        if (from == to) {
+            return;
+        }
+        for (int i = from; i < to; i++) {
+            if (text[i] == '\r') {
+                String decoded = new String(text, from, to - from, StandardCharsets.UTF_8);
+                store.setText(node, SinglePassXMLParser.normalizeNewlines(decoded));
+                return;
+            }
+        }
+        store.setText(node, text, from, to);
+    }
+}
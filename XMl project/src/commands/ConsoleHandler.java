@@ -117,10 +117,23 @@ public class ConsoleHandler {
         switch (type) {
             case OPEN:
                 System.out.println("\nDetails:");
-                System.out.println("  The open command loads and displays an XML file.");
-                System.out.println("  Usage: open <filename>");
-                System.out.println("\nExample:");
+                System.out.println("  The open command loads and displays an XML file (plain or gzip-compressed).");
+                System.out.println("  Usage: open <filename> [mode | only <path>...]");
+                System.out.println("  - [mode]: Optional parse mode: single-pass (default), sliced, mapped, parallel, lazy, compact, off-heap, persistent or legacy");
+                System.out.println("  - only <path>...: Load only elements on the given paths (e.g. book/title) and their ancestors;");
+                System.out.println("    only the loaded part can be written, so use saveas instead of save");
+                System.out.println("\nExamples:");
                 System.out.println("  open test.xml");
+                System.out.println("  open notes.xml sliced");
+                System.out.println("  open big.xml mapped");
+                System.out.println("  open records.xml parallel");
+                System.out.println("  open huge.xml lazy");
+                System.out.println("  open huge.xml compact");
+                System.out.println("  open huge.xml off-heap");
+                System.out.println("  open shared.xml persistent");
+                System.out.println("  open books.xml only book/title");
+                System.out.println("  open archive.xml.gz");
+                System.out.println("  open old.xml legacy");
                 break;
             case PRINT:
                 System.out.println("\nDetails:");
@@ -209,9 +222,10 @@ public class ConsoleHandler {
                 System.out.println("\nDetails:");
                 System.out.println("  The saveas command saves the current XML structure to a new file.");
                 System.out.println("  Usage: saveas <filename>");
-                System.out.println("  - <filename>: The name of the file to save to");
+                System.out.println("  - <filename>: The name of the file to save to; a .gz name is written gzip-compressed");
                 System.out.println("\nExample:");
                 System.out.println("  saveas output.xml");
+                System.out.println("  saveas archive.xml.gz");
                 break;
             default:
                 break;
@@ -0,0 +1,114 @@
+package commands;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Раздава номерата за автоматичните ID ("auto_N") на елементите на един
+ * документ. Всеки парсер създава нов IDManager за документа, който строи,
+ * затова номерата започват от 1 при всяко отваряне и не зависят от това
+ * какво е било отворено преди.
+ *
+ * Номерата се раздават на блокове: reserve() взема последователен блок с
+ * една атомарна операция, а next() дава номер от блока на текущата нишка
+ * и се обръща към общия брояч само когато блокът свърши. Затова нишки,
+ * които създават елементи едновременно (частите на паралелния парсър,
+ * newchild от няколко нишки), почти не се конкурират, а номерата остават
+ * уникални в документа. Номерата между нишките не са последователни.
+ *
+ * Пример за употреба:
+ * <pre>
+ * IDManager ids = new IDManager();
+ * int first = ids.reserve(1000);  // номерата first .. first + 999
+ * XMLElement element = document.createElement("person"); // ids.next()
+ * </pre>
+ */
+public final class IDManager {
+    /**
+     * Колко номера взема next() наведнъж за една нишка.
+     */
+    static final int BLOCK_SIZE = 64;
+
+    private final AtomicInteger nextFree;
+    private final ThreadLocal<int[]> block = ThreadLocal.withInitial(() -> new int[2]);
+
+    /**
+     * Създава генератор за нов документ; първият номер е 1.
+     */
+    public IDManager() {
+        this(1);
+    }
+
+    private IDManager(int first) {
+        this.nextFree = new AtomicInteger(first);
+    }
+
+    /**
+     * Създава генератор за вече построено дърво: номерата продължават след
+     * най-голямото автоматично ID в него. Дървото се обхожда веднъж.
+     *
+     * @param root коренът на дървото
+     * @return генераторът
+     */
+    public static IDManager continuing(XMLElement root) {
+        int max = 0;
+        Iterator<XMLElement> it = root.preOrderIterator();
+        while (it.hasNext()) {
+            max = Math.max(max, autoNumber(it.next().getId()));
+        }
+        return new IDManager(max + 1);
+    }
+
+    /**
+     * Запазва последователен блок от номера.
+     *
+     * @param count броят на номерата
+     * @return първият номер от блока
+     */
+    public int reserve(int count) {
+        return nextFree.getAndAdd(count);
+    }
+
+    /**
+     * Връща неизползвания край [from, to) на последния запазен блок, ако
+     * след него не е запазено нищо друго; иначе номерата просто остават
+     * неизползвани.
+     *
+     * @param from първият неизползван номер
+     * @param to краят на блока (без него)
+     */
+    void release(int from, int to) {
+        if (from < to) {
+            nextFree.compareAndSet(to, from);
+        }
+    }
+
+    /**
+     * Връща следващия номер от блока на текущата нишка.
+     *
+     * @return уникален номер в документа
+     */
+    public int next() {
+        int[] current = block.get();
+        if (current[0] == current[1]) {
+            current[0] = reserve(BLOCK_SIZE);
+            current[1] = current[0] + BLOCK_SIZE;
+        }
+        return current[0]++;
+    }
+
+    /**
+     * @param id ID на елемент
+     * @return N за "auto_N" или 0, ако ID-то не е автоматично
+     */
+    static int autoNumber(String id) {
+        if (id == null || !id.startsWith("auto_")) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(id.substring(5));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
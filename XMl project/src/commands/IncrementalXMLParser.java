@@ -0,0 +1,98 @@
+package commands;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Парсва XML, който пристига на части с произволна големина (от сокет,
+ * програмен канал и т.н.). Всяка част се подава с feed(); парсърът обработва
+ * всичко, което вече е пълно, и запазва състоянието си до следващата част,
+ * без да блокира и без да чака целия документ.
+ *
+ * Пази се само незавършеният токен, а не целият вход. Всеки елемент се
+ * подава на XMLElementListener веднага щом бъде затворен. Полученото дърво
+ * е същото като при XMLParser в режим SINGLE_PASS.
+ *
+ * След XMLParseException парсърът не може да продължи.
+ *
+ * Пример за употреба:
+ * <pre>
+ * IncrementalXMLParser parser = new IncrementalXMLParser(element -&gt; System.out.println(element.getTag()));
+ * byte[] chunk = new byte[8192];
+ * int n;
+ * while ((n = in.read(chunk)) != -1) {
+ *     parser.feed(ByteBuffer.wrap(chunk, 0, n));
+ * }
+ * XMLElement root = parser.finish();
+ * </pre>
+ */
+public class IncrementalXMLParser {
+    private final XMLEventCursor cursor = XMLEventCursor.incremental();
+    private final SinglePassXMLParser builder = new SinglePassXMLParser();
+    private final List<XMLElement> topLevel = new ArrayList<>(1);
+    private boolean finished;
+
+    /**
+     * Създава парсър без получател на завършените елементи.
+     */
+    public IncrementalXMLParser() {
+        this(null);
+    }
+
+    /**
+     * Създава парсър, който уведомява listener за всеки затворен елемент.
+     *
+     * @param listener получателят или null
+     */
+    public IncrementalXMLParser(XMLElementListener listener) {
+        builder.setListener(listener);
+        builder.useIds(new IDManager());
+    }
+
+    /**
+     * Подава следващата част от документа и обработва всички елементи,
+     * които вече са пълни. Байтовете на chunk се копират, така че буферът
+     * може да се използва отново след извикването.
+     *
+     * @param chunk следващите байтове на документа (UTF-8)
+     * @throws IOException ако получените досега байтове не са добре форматиран XML
+     * @throws IllegalStateException ако finish() вече е извикан
+     */
+    public void feed(ByteBuffer chunk) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("Parser is already finished");
+        }
+        cursor.feed(chunk);
+        builder.advance(cursor, topLevel);
+    }
+
+    /**
+     * Обявява края на входа, обработва останалите байтове и връща корена.
+     *
+     * @return коренен елемент на парснатото XML дърво
+     * @throws IOException ако документът е непълен или не е добре форматиран
+     */
+    public XMLElement finish() throws IOException {
+        if (!finished) {
+            finished = true;
+            cursor.endOfInput();
+            try {
+                builder.advance(cursor, topLevel);
+            } finally {
+                builder.clear();
+            }
+        }
+        return topLevel.get(0);
+    }
+
+    /**
+     * Връща корена на частично построеното дърво.
+     *
+     * @return коренният елемент или null, ако отварящият му таг още не е пристигнал
+     */
+    public XMLElement getRoot() {
+        return topLevel.isEmpty() ? null : topLevel.get(0);
+    }
+}
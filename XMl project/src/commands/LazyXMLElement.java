@@ -0,0 +1,145 @@
+package commands;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * XML елемент, чиито атрибути, текст и деца се декодират от файла едва при
+ * първия достъп до тях. Създава се от LazyXMLParser върху индекс с позициите
+ * на елементите; дотогава се пазят само името на тага и номерът в индекса.
+ *
+ * - getAttributes(), getAttribute() и getTextContent() прочитат отварящия таг
+ *   (а за елемент без деца - и текста му)
+ * - getChildren() създава децата като нови LazyXMLElement обекти
+ *
+ * След декодирането елементът се държи като обикновен XMLElement и може да
+ * се променя. ID-тата и съдържанието съвпадат с тези при SINGLE_PASS.
+ *
+ * Декодирането използва общия курсор и таблицата на символите на индекса,
+ * затова става в synchronized (index), а флаговете се вдигат едва след
+ * като данните са попълнени. Така дървото може да се чете от няколко нишки
+ * (например root.stream().parallel()); вече декодираните елементи се четат
+ * без заключване.
+ */
+class LazyXMLElement extends XMLElement {
+    private final XMLOffsetIndex index;
+    private final int element;
+    private final int firstAutoId;
+    private volatile boolean contentLoaded;
+    private volatile boolean childrenLoaded;
+    // Вдига се, докато нишката, която държи индекса, попълва атрибутите:
+    // readAttributes() ги задава през setAttribute(), което вика loadContent().
+    private boolean loadingContent;
+
+    /**
+     * @param index индексът на документа
+     * @param element номерът на елемента в индекса
+     * @param firstAutoId автоматичното ID на корена (елемент 0)
+     */
+    LazyXMLElement(XMLOffsetIndex index, int element, int firstAutoId) {
+        super(index.tagName(element), firstAutoId + element);
+        this.index = index;
+        this.element = element;
+        this.firstAutoId = firstAutoId;
+    }
+
+    @Override
+    public String getTextContent() {
+        loadContent();
+        return super.getTextContent();
+    }
+
+    @Override
+    public void setTextContent(String text) {
+        loadContent();
+        super.setTextContent(text);
+    }
+
+    @Override
+    public void setAttribute(String key, String value) {
+        loadContent();
+        super.setAttribute(key, value);
+    }
+
+    @Override
+    public String getAttribute(String key) {
+        loadContent();
+        return super.getAttribute(key);
+    }
+
+    @Override
+    public String removeAttribute(String key) {
+        loadContent();
+        return super.removeAttribute(key);
+    }
+
+    @Override
+    public Map<String, String> getAttributes() {
+        loadContent();
+        return super.getAttributes();
+    }
+
+    @Override
+    public void addChild(XMLElement child) {
+        loadChildren();
+        super.addChild(child);
+    }
+
+    @Override
+    public List<XMLElement> getChildren() {
+        loadChildren();
+        return super.getChildren();
+    }
+
+    /**
+     * Елемент без деца се парсва изцяло, за да се получи текстът му по
+     * същите правила като при SINGLE_PASS; при останалите се чете само
+     * отварящият таг, защото текстът им не се пази.
+     */
+    private void loadContent() {
+        if (contentLoaded) {
+            return;
+        }
+        synchronized (index) {
+            if (contentLoaded || loadingContent) {
+                return;
+            }
+            loadingContent = true;
+            try {
+                if (index.isLeaf(element)) {
+                    XMLEventCursor cursor = index.cursor(index.start(element), index.end(element));
+                    XMLElement parsed = new SinglePassXMLParser().parseFragment(cursor, firstAutoId + element, null).get(0);
+                    super.getAttributes().putAll(parsed.getAttributes());
+                    super.setTextContent(parsed.getTextContent());
+                } else {
+                    index.readAttributes(element, this);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                loadingContent = false;
+            }
+            contentLoaded = true;
+        }
+    }
+
+    private void loadChildren() {
+        if (childrenLoaded) {
+            return;
+        }
+        synchronized (index) {
+            if (childrenLoaded) {
+                return;
+            }
+            int end = index.subtreeEnd(element);
+            for (int child = element + 1; child < end; child = index.subtreeEnd(child)) {
+                XMLElement lazy = new LazyXMLElement(index, child, firstAutoId);
+                lazy.setParent(this);
+                super.addChild(lazy);
+            }
+            childrenLoaded = true;
+        }
+    }
+}
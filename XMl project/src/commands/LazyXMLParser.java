@@ -0,0 +1,90 @@
+package commands;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Отваря XML документ, без да строи цялото дърво. Файлът се картографира в
+ * паметта и се обхожда веднъж, като се записват само позициите на
+ * елементите (XMLOffsetIndex, по 16 байта на елемент). Връща се коренът като
+ * LazyXMLElement; децата, атрибутите и текстът на всеки елемент се декодират
+ * едва когато бъдат поискани.
+ *
+ * Така времето до първата команда и заетата памет зависят от това колко от
+ * документа се използва, а не от размера на файла. Грешките в XML се
+ * откриват още при отварянето, както при SINGLE_PASS.
+ *
+ * Пример за употреба:
+ * <pre>
+ * XMLElement root = new LazyXMLParser().parse("huge.xml");
+ * XMLElement first = root.getChildren().get(0); // декодират се само децата на корена
+ * </pre>
+ */
+public class LazyXMLParser {
+    /**
+     * Картографира файла и връща корена на мързеливото дърво. Файлове над
+     * 2 GB не се побират в един буфер и се парсват изцяло на прозорци.
+     *
+     * @param filename път до XML файла
+     * @return коренен елемент на документа
+     * @throws IOException ако файлът не може да бъде прочетен или съдържа невалиден XML
+     */
+    public XMLElement parse(String filename) throws IOException {
+        return parseDocument(filename).getRoot();
+    }
+
+    /**
+     * Като parse(filename), но връща документ с генератора на автоматичните
+     * ID, от който е взет блокът за елементите на файла.
+     *
+     * @param filename път до XML файла
+     * @return документът с мързеливия корен
+     * @throws IOException ако файлът не може да бъде прочетен или съдържа невалиден XML
+     */
+    public XMLDocument parseDocument(String filename) throws IOException {
+        ByteBuffer document;
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                document = null;
+            } else {
+                document = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+        if (document == null) {
+            IDManager ids = new IDManager();
+            try (XMLEventCursor cursor = XMLEventCursor.open(filename)) {
+                return new XMLDocument(new SinglePassXMLParser().parse(cursor, ids), ids);
+            }
+        }
+        return parseDocument(document);
+    }
+
+    /**
+     * Индексира документ, кодиран в UTF-8, от байтовете между position и limit
+     * на буфера. Буферът не се копира и не трябва да се променя, докато дървото се използва.
+     *
+     * @param input байтовете на документа
+     * @return коренен елемент на документа
+     * @throws IOException ако XML не е добре форматиран
+     */
+    public XMLElement parse(ByteBuffer input) throws IOException {
+        return parseDocument(input).getRoot();
+    }
+
+    /**
+     * Като parse(input), но връща документ с генератора на автоматичните ID.
+     *
+     * @param input байтовете на документа
+     * @return документът с мързеливия корен
+     * @throws IOException ако XML не е добре форматиран
+     */
+    public XMLDocument parseDocument(ByteBuffer input) throws IOException {
+        XMLOffsetIndex index = XMLOffsetIndex.build(input.slice());
+        IDManager ids = new IDManager();
+        int firstAutoId = ids.reserve(index.size());
+        return new XMLDocument(new LazyXMLElement(index, 0, firstAutoId), ids);
+    }
+}
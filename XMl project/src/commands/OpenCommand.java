@@ -1,10 +1,14 @@
 package commands;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 
 public class OpenCommand implements ParameterizedCommand {
     private XMLCommandHandler handler;
     private String filename;
+    private ParseMode mode;
+    private List<String> paths;
 
     public OpenCommand(XMLCommandHandler handler, String filename) {
         this.handler = handler;
@@ -15,10 +19,32 @@ public class OpenCommand implements ParameterizedCommand {
         this.filename = filename;
     }
 
+    public void setMode(ParseMode mode) {
+        this.mode = mode;
+    }
+
+    public void setPaths(List<String> paths) {
+        this.paths = paths;
+    }
+
     @Override
     public void setParameters(String[] tokens) throws Exception {
         if (tokens.length == 2) {
             setFilename(tokens[1]);
+            setMode(null);
+            setPaths(null);
+        } else if (tokens.length > 3 && tokens[2].equalsIgnoreCase("only")) {
+            setFilename(tokens[1]);
+            setMode(null);
+            setPaths(Arrays.asList(tokens).subList(3, tokens.length));
+        } else if (tokens.length == 3) {
+            ParseMode parsed = ParseMode.fromString(tokens[2]);
+            if (parsed == null) {
+                throw new IllegalArgumentException("Unknown parse mode: " + tokens[2]);
+            }
+            setFilename(tokens[1]);
+            setMode(parsed);
+            setPaths(null);
         } else {
             throw new IllegalArgumentException("Invalid usage for open command.");
         }
@@ -26,12 +52,18 @@ public class OpenCommand implements ParameterizedCommand {
 
     @Override
     public void execute() throws IOException {
-        handler.open(filename);
+        if (paths != null) {
+            handler.open(filename, paths);
+        } else if (mode != null) {
+            handler.open(filename, mode);
+        } else {
+            handler.open(filename);
+        }
         handler.print();
     }
     
     @Override
     public String getHelp() {
-        return "open <filename>          - Open and display an XML file";
+        return "open <filename> [mode | only <path>...]   - Open and display an XML file (mode: single-pass, sliced, mapped, parallel, lazy, compact, off-heap, persistent, legacy)";
     }
 } 
\ No newline at end of file
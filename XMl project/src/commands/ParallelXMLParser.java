@@ -0,0 +1,489 @@
+package commands;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Парсва големи XML документи паралелно, като разделя децата на корена
+ * на части и ги парсва едновременно във ForkJoinPool.
+ *
+ * Парсването минава на три стъпки:
+ * - бързо обхождане на байтовете намира отварящия таг на корена и границите
+ *   между децата му (коментари, CDATA и стойности в кавички се прескачат)
+ * - съседните деца се групират в части от поне MIN_CHUNK_SIZE байта и всяка
+ *   част се парсва от собствен SinglePassXMLParser върху общия буфер
+ * - готовите елементи се закачат към корена в реда им във файла
+ *
+ * Автоматичните ID се запазват предварително като един блок от IDManager
+ * на документа, а всяка част получава своя отрязък от него. Така нишките
+ * не се конкурират за номерата и полученото дърво (включително ID-тата)
+ * е същото като при SINGLE_PASS.
+ * Малки документи, документи без деца на корена и такива, чиято структура
+ * не може да се раздели надеждно, се парсват последователно; така и
+ * грешките в тях се докладват точно както при SINGLE_PASS.
+ *
+ * Пример за употреба:
+ * <pre>
+ * XMLElement root = new ParallelXMLParser().parse("records.xml");
+ * </pre>
+ */
+public class ParallelXMLParser {
+    private static final int MIN_CHUNK_SIZE = 1 << 20;
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Създава парсър, който използва общия ForkJoinPool.
+     */
+    public ParallelXMLParser() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Създава парсър, който изпълнява частите в подадения пул.
+     *
+     * @param pool пулът за паралелните задачи
+     */
+    public ParallelXMLParser(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Картографира файла в паметта и го парсва паралелно. Файлове над 2 GB
+     * не се побират в един буфер и се парсват последователно на прозорци.
+     *
+     * @param filename път до XML файла
+     * @return коренен елемент на парснатото XML дърво
+     * @throws IOException ако файлът не може да бъде прочетен или съдържа невалиден XML
+     */
+    public XMLElement parse(String filename) throws IOException {
+        return parse(filename, false).getRoot();
+    }
+
+    /**
+     * Като parse(String), но всяка част попълва и индекс от ID към елемент;
+     * индексите се обединяват в реда на частите.
+     *
+     * @param filename път до XML файла
+     * @return документът с корена и индекса
+     * @throws IOException ако файлът не може да бъде прочетен или съдържа невалиден XML
+     */
+    public XMLDocument parseDocument(String filename) throws IOException {
+        return parse(filename, true);
+    }
+
+    /**
+     * Парсва паралелно документ, кодиран в UTF-8, от байтовете между position и limit на буфера.
+     *
+     * @param input байтовете на документа
+     * @return коренен елемент на парснатото XML дърво
+     * @throws IOException ако XML не е добре форматиран
+     */
+    public XMLElement parse(ByteBuffer input) throws IOException {
+        return parse(input, false).getRoot();
+    }
+
+    /**
+     * Като parse(ByteBuffer), но попълва и индекс от ID към елемент.
+     *
+     * @param input байтовете на документа
+     * @return документът с корена и индекса
+     * @throws IOException ако XML не е добре форматиран
+     */
+    public XMLDocument parseDocument(ByteBuffer input) throws IOException {
+        return parse(input, true);
+    }
+
+    private XMLDocument parse(String filename, boolean indexIds) throws IOException {
+        ByteBuffer document;
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                document = null;
+            } else {
+                document = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+        if (document == null) {
+            try (XMLEventCursor cursor = XMLEventCursor.open(filename)) {
+                return parseSequential(cursor, indexIds);
+            }
+        }
+        return parse(document, indexIds);
+    }
+
+    private XMLDocument parse(ByteBuffer input, boolean indexIds) throws IOException {
+        ByteBuffer document = input.slice();
+        Layout layout = pool.getParallelism() > 1 ? split(document) : null;
+        if (layout == null) {
+            return parseSequential(new XMLEventCursor(document), indexIds);
+        }
+
+        Chunk[] chunks = layout.chunks.toArray(new Chunk[0]);
+        int elements = 0;
+        for (Chunk chunk : chunks) {
+            elements += chunk.elements;
+        }
+        IDManager ids = new IDManager();
+        int rootId = ids.reserve(elements + 1);
+        int nextId = rootId + 1;
+        for (Chunk chunk : chunks) {
+            chunk.firstAutoId = nextId;
+            chunk.idIndex = indexIds ? new HashMap<>() : null;
+            nextId += chunk.elements;
+        }
+
+        XMLElement root = parseRoot(document, layout, rootId);
+        pool.invoke(new ChunkTask(document, chunks, 0, chunks.length));
+        for (Chunk chunk : chunks) {
+            if (chunk.error != null) {
+                throw chunk.error;
+            }
+            for (XMLElement child : chunk.result) {
+                child.setParent(root);
+                root.addChild(child);
+            }
+        }
+        if (!indexIds) {
+            return new XMLDocument(root, ids);
+        }
+        // Индексът на първата част се използва като общ: коренът е преди
+        // всички нейни елементи, а следващите части - след тях.
+        Map<String, XMLElement> idIndex = chunks[0].idIndex;
+        idIndex.put(root.getAttribute("id"), root);
+        for (int i = 1; i < chunks.length; i++) {
+            chunks[i].idIndex.forEach(idIndex::putIfAbsent);
+        }
+        return new XMLDocument(root, idIndex, ids);
+    }
+
+    private static XMLDocument parseSequential(XMLEventCursor cursor, boolean indexIds) throws IOException {
+        SinglePassXMLParser parser = new SinglePassXMLParser();
+        if (indexIds) {
+            return parser.parseDocument(cursor);
+        }
+        IDManager ids = new IDManager();
+        return new XMLDocument(parser.parse(cursor, ids), ids);
+    }
+
+    /**
+     * Създава корена само от отварящия му таг; затварящият таг вече е
+     * проверен при разделянето.
+     */
+    private static XMLElement parseRoot(ByteBuffer document, Layout layout, int rootId) throws IOException {
+        XMLEventCursor cursor = new XMLEventCursor(document, layout.rootStart, layout.rootTagEnd);
+        cursor.next();
+        XMLElement root = new XMLElement(cursor.getName(), rootId);
+        for (int n = cursor.getAttributeCount(); n > 0; n--) {
+            cursor.next();
+            if (!cursor.isNamespaceDeclaration()) {
+                root.setAttribute(cursor.getAttributeName(), cursor.getAttributeValue());
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Намира границите между децата на корена и ги групира в части.
+     *
+     * @return разделението или null, ако документът трябва да се парсне последователно
+     */
+    private Layout split(ByteBuffer document) {
+        int limit = document.limit();
+        if (limit < 2 * MIN_CHUNK_SIZE) {
+            return null;
+        }
+        int rootStart = skipProlog(document, limit);
+        if (rootStart == -1) {
+            return null;
+        }
+        int rootNameEnd = nameEnd(document, rootStart + 1, limit);
+        int rootTagEnd = tagEnd(document, rootNameEnd, limit);
+        if (rootNameEnd == rootStart + 1 || rootTagEnd == -1 || document.get(rootTagEnd - 1) == '/') {
+            return null;
+        }
+
+        int target = Math.max(MIN_CHUNK_SIZE, limit / (pool.getParallelism() * CHUNKS_PER_THREAD));
+        Layout layout = new Layout(rootStart, rootTagEnd + 1);
+        int chunkStart = rootTagEnd + 1;
+        int elements = 0;
+        int depth = 0;
+        int i = chunkStart;
+        while (true) {
+            i = indexOf(document, '<', i, limit);
+            if (i == -1) {
+                return null;
+            }
+            if (startsWith(document, "<!--", i, limit)) {
+                i = skipPast(document, "-->", i + 4, limit);
+            } else if (startsWith(document, "<![CDATA[", i, limit)) {
+                i = skipPast(document, "]]>", i + 9, limit);
+            } else if (startsWith(document, "<?", i, limit)) {
+                i = skipPast(document, "?>", i + 2, limit);
+            } else if (startsWith(document, "<!", i, limit)) {
+                return null;
+            } else if (startsWith(document, "</", i, limit)) {
+                int end = indexOf(document, '>', i, limit);
+                if (end == -1) {
+                    return null;
+                }
+                if (depth == 0) {
+                    if (!isEndTagOf(document, i + 2, end, rootStart + 1, rootNameEnd)
+                            || !isMiscOnly(document, end + 1, limit)) {
+                        return null;
+                    }
+                    layout.addChunk(chunkStart, i, elements);
+                    return layout.chunks.size() > 1 ? layout : null;
+                }
+                depth--;
+                i = end + 1;
+            } else {
+                int end = tagEnd(document, i + 1, limit);
+                if (end == -1) {
+                    return null;
+                }
+                elements++;
+                if (document.get(end - 1) != '/') {
+                    depth++;
+                }
+                i = end + 1;
+            }
+            if (i == -1) {
+                return null;
+            }
+            if (depth == 0 && i - chunkStart >= target) {
+                layout.addChunk(chunkStart, i, elements);
+                chunkStart = i;
+                elements = 0;
+            }
+        }
+    }
+
+    /**
+     * Прескача BOM, XML декларацията, коментарите и DOCTYPE без вътрешна част.
+     *
+     * @return позицията на отварящия таг на корена или -1
+     */
+    private static int skipProlog(ByteBuffer document, int limit) {
+        int i = limit >= 3 && (document.get(0) & 0xFF) == 0xEF
+                && (document.get(1) & 0xFF) == 0xBB && (document.get(2) & 0xFF) == 0xBF ? 3 : 0;
+        while (i != -1 && i < limit) {
+            int c = document.get(i) & 0xFF;
+            if (c <= ' ') {
+                i++;
+            } else if (startsWith(document, "<?", i, limit)) {
+                i = skipPast(document, "?>", i + 2, limit);
+            } else if (startsWith(document, "<!--", i, limit)) {
+                i = skipPast(document, "-->", i + 4, limit);
+            } else if (startsWith(document, "<!", i, limit)) {
+                int end = indexOf(document, '>', i, limit);
+                if (end == -1 || indexOf(document, '[', i, end) != -1) {
+                    return -1;
+                }
+                i = end + 1;
+            } else {
+                return c == '<' ? i : -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Проверява, че след корена има само празни символи, коментари и инструкции.
+     */
+    private static boolean isMiscOnly(ByteBuffer document, int from, int limit) {
+        int i = from;
+        while (i != -1 && i < limit) {
+            if ((document.get(i) & 0xFF) <= ' ') {
+                i++;
+            } else if (startsWith(document, "<!--", i, limit)) {
+                i = skipPast(document, "-->", i + 4, limit);
+            } else if (startsWith(document, "<?", i, limit)) {
+                i = skipPast(document, "?>", i + 2, limit);
+            } else {
+                return false;
+            }
+        }
+        return i != -1;
+    }
+
+    private static boolean isEndTagOf(ByteBuffer document, int from, int end, int nameStart, int nameEnd) {
+        int length = nameEnd - nameStart;
+        if (end - from < length) {
+            return false;
+        }
+        for (int k = 0; k < length; k++) {
+            if (document.get(from + k) != document.get(nameStart + k)) {
+                return false;
+            }
+        }
+        for (int i = from + length; i < end; i++) {
+            if ((document.get(i) & 0xFF) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int nameEnd(ByteBuffer document, int from, int limit) {
+        int i = from;
+        while (i < limit) {
+            int c = document.get(i) & 0xFF;
+            if (c <= ' ' || c == '>' || c == '/' || c == '<') {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Намира '>' на таг, като прескача стойностите в кавички.
+     *
+     * @return позицията на '>' или -1
+     */
+    private static int tagEnd(ByteBuffer document, int from, int limit) {
+        for (int i = from; i < limit; i++) {
+            int c = document.get(i);
+            if (c == '>') {
+                return i;
+            }
+            if (c == '<') {
+                return -1;
+            }
+            if (c == '"' || c == '\'') {
+                i = indexOf(document, c, i + 1, limit);
+                if (i == -1) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(ByteBuffer document, int c, int from, int limit) {
+        for (int i = from; i < limit; i++) {
+            if (document.get(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(ByteBuffer document, String prefix, int at, int limit) {
+        if (at + prefix.length() > limit) {
+            return false;
+        }
+        for (int k = 0; k < prefix.length(); k++) {
+            if ((document.get(at + k) & 0xFF) != prefix.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return позицията след края на маркера или -1, ако маркерът липсва
+     */
+    private static int skipPast(ByteBuffer document, String marker, int from, int limit) {
+        int first = marker.charAt(0);
+        for (int i = indexOf(document, first, from, limit); i != -1; i = indexOf(document, first, i + 1, limit)) {
+            if (startsWith(document, marker, i, limit)) {
+                return i + marker.length();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Позицията на корена и частите, на които са разделени децата му.
+     */
+    private static final class Layout {
+        final int rootStart;
+        final int rootTagEnd;
+        final List<Chunk> chunks = new ArrayList<>();
+
+        Layout(int rootStart, int rootTagEnd) {
+            this.rootStart = rootStart;
+            this.rootTagEnd = rootTagEnd;
+        }
+
+        /**
+         * Текст без елементи в края се присъединява към предишната част.
+         */
+        void addChunk(int from, int to, int elements) {
+            if (elements == 0 && !chunks.isEmpty()) {
+                chunks.get(chunks.size() - 1).to = to;
+            } else {
+                chunks.add(new Chunk(from, to, elements));
+            }
+        }
+    }
+
+    /**
+     * Поредица от съседни деца на корена, която се парсва като фрагмент.
+     */
+    private static final class Chunk {
+        final int from;
+        int to;
+        final int elements;
+        int firstAutoId;
+        Map<String, XMLElement> idIndex;
+        List<XMLElement> result;
+        IOException error;
+
+        Chunk(int from, int to, int elements) {
+            this.from = from;
+            this.to = to;
+            this.elements = elements;
+        }
+
+        void parse(ByteBuffer document) {
+            try {
+                result = new SinglePassXMLParser().parseFragment(new XMLEventCursor(document, from, to), firstAutoId, idIndex);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+    }
+
+    /**
+     * Разделя частите на две половини, докато остане по една за парсване.
+     * Грешките се пазят в частите, за да се докладва първата по ред във файла.
+     */
+    private static final class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer document;
+        private final Chunk[] chunks;
+        private final int from;
+        private final int to;
+
+        ChunkTask(ByteBuffer document, Chunk[] chunks, int from, int to) {
+            this.document = document;
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                chunks[from].parse(document);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new ChunkTask(document, chunks, from, middle),
+                      new ChunkTask(document, chunks, middle, to));
+        }
+    }
+}
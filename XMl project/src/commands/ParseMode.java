@@ -0,0 +1,53 @@
+package commands;
+
+/**
+ * Режим на парсване, с който XMLParser зарежда документ.
+ * - LEGACY: рекурсивно парсване чрез substring (досегашното поведение)
+ * - SINGLE_PASS: еднократно линейно обхождане на входа с явен стек
+ * - SLICED: като SINGLE_PASS, но текстът и стойностите на атрибутите не
+ *   се копират, а сочат байтовете на файла, които остават в паметта;
+ *   String се създава едва при четене на стойността
+ * - MAPPED: като SINGLE_PASS, но байтовете се четат от картографиран файл
+ *   (FileChannel.map) на прозорци вместо от копие в паметта
+ * - PARALLEL: децата на корена се разделят на части, които се парсват
+ *   едновременно във ForkJoinPool и се съединяват в реда им във файла
+ * - LAZY: при отваряне се индексират само позициите на елементите, а
+ *   съдържанието им се декодира при първия достъп
+ * - COMPACT: дървото се пази в паралелни масиви от int (XMLNodeStore), а
+ *   елементите са изгледи към тях; заема няколко пъти по-малко памет
+ * - OFF_HEAP: като COMPACT, но масивите, текстът и стойностите на
+ *   атрибутите са в директни буфери извън heap-а
+ * - PERSISTENT: парсва се като SINGLE_PASS, а дървото става неизменимо
+ *   (PersistentXMLDocument); промените създават нови версии и snapshot()
+ *   връща текущата без копиране
+ */
+public enum ParseMode {
+    LEGACY("legacy"),
+    SINGLE_PASS("single-pass"),
+    SLICED("sliced"),
+    MAPPED("mapped"),
+    PARALLEL("parallel"),
+    LAZY("lazy"),
+    COMPACT("compact"),
+    OFF_HEAP("off-heap"),
+    PERSISTENT("persistent");
+
+    private final String modeString;
+
+    ParseMode(String modeString) {
+        this.modeString = modeString;
+    }
+
+    public String getModeString() {
+        return modeString;
+    }
+
+    public static ParseMode fromString(String text) {
+        for (ParseMode mode : ParseMode.values()) {
+            if (mode.modeString.equalsIgnoreCase(text)) {
+                return mode;
+            }
+        }
+        return null;
+    }
+}
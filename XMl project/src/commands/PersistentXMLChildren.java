@@ -0,0 +1,210 @@
+package commands;
+
+import java.util.Arrays;
+
+/**
+ * Неизменим списък с децата на PersistentXMLNode. До WIDTH деца се пазят в
+ * един масив; повече се разделят на дърво от възли с най-много WIDTH
+ * елемента, в което всички листа са на една и съща дълбочина. Вътрешните
+ * възли пазят броя на децата до края на всяко свое поддърво.
+ *
+ * Промяна (set, add, remove) копира само възлите по пътя до засегнатото
+ * дете - O(WIDTH * log(броя на децата)) - а останалите части се споделят с
+ * предишната версия. Така промяна в документ с плосък корен с милиони деца
+ * не копира целия списък на корена.
+ *
+ * След премахване възлите не се сливат: празните се изтриват, а
+ * височината на дървото никога не расте от премахване.
+ */
+final class PersistentXMLChildren {
+    static final int WIDTH = 32;
+    static final PersistentXMLChildren EMPTY = new PersistentXMLChildren(new Object[0], null, 0);
+
+    // лист: PersistentXMLNode; вътрешен възел: PersistentXMLChildren
+    private final Object[] slots;
+    // null за лист; иначе ends[i] е броят на децата в slots[0..i]
+    private final int[] ends;
+    private final int size;
+
+    private PersistentXMLChildren(Object[] slots, int[] ends, int size) {
+        this.slots = slots;
+        this.ends = ends;
+        this.size = size;
+    }
+
+    /**
+     * @param nodes децата в реда им; масивът се използва без копиране
+     * @return списъкът
+     */
+    static PersistentXMLChildren of(PersistentXMLNode[] nodes) {
+        if (nodes.length == 0) {
+            return EMPTY;
+        }
+        if (nodes.length <= WIDTH) {
+            return new PersistentXMLChildren(nodes, null, nodes.length);
+        }
+        PersistentXMLChildren[] level = new PersistentXMLChildren[(nodes.length + WIDTH - 1) / WIDTH];
+        for (int i = 0; i < level.length; i++) {
+            int from = i * WIDTH;
+            int to = Math.min(from + WIDTH, nodes.length);
+            level[i] = new PersistentXMLChildren(Arrays.copyOfRange(nodes, from, to, Object[].class), null, to - from);
+        }
+        while (level.length > 1) {
+            PersistentXMLChildren[] parents = new PersistentXMLChildren[(level.length + WIDTH - 1) / WIDTH];
+            for (int i = 0; i < parents.length; i++) {
+                int from = i * WIDTH;
+                parents[i] = inner(Arrays.copyOfRange(level, from, Math.min(from + WIDTH, level.length), Object[].class));
+            }
+            level = parents;
+        }
+        return level[0];
+    }
+
+    int size() {
+        return size;
+    }
+
+    PersistentXMLNode get(int index) {
+        checkIndex(index, size);
+        PersistentXMLChildren current = this;
+        while (current.ends != null) {
+            int slot = current.slotOf(index);
+            if (slot > 0) {
+                index -= current.ends[slot - 1];
+            }
+            current = (PersistentXMLChildren) current.slots[slot];
+        }
+        return (PersistentXMLNode) current.slots[index];
+    }
+
+    /**
+     * @return нов списък, в който детето на позиция index е node
+     */
+    PersistentXMLChildren set(int index, PersistentXMLNode node) {
+        checkIndex(index, size);
+        if (ends == null) {
+            Object[] updated = slots.clone();
+            updated[index] = node;
+            return new PersistentXMLChildren(updated, null, size);
+        }
+        int slot = slotOf(index);
+        int offset = slot > 0 ? ends[slot - 1] : 0;
+        Object[] updated = slots.clone();
+        updated[slot] = ((PersistentXMLChildren) slots[slot]).set(index - offset, node);
+        return new PersistentXMLChildren(updated, ends, size);
+    }
+
+    /**
+     * @return нов списък с node добавен в края
+     */
+    PersistentXMLChildren add(PersistentXMLNode node) {
+        PersistentXMLChildren[] split = append(node);
+        return split.length == 1 ? split[0] : inner(split);
+    }
+
+    /**
+     * @return нов списък без детето на позиция index
+     */
+    PersistentXMLChildren remove(int index) {
+        checkIndex(index, size);
+        PersistentXMLChildren result = without(index);
+        while (result.ends != null && result.slots.length == 1) {
+            result = (PersistentXMLChildren) result.slots[0];
+        }
+        return result;
+    }
+
+    /**
+     * Добавя в края на поддървото. Ако възелът е пълен, връща го заедно с
+     * нов съсед със същата височина.
+     */
+    private PersistentXMLChildren[] append(PersistentXMLNode node) {
+        if (ends == null) {
+            if (slots.length < WIDTH) {
+                Object[] updated = Arrays.copyOf(slots, slots.length + 1);
+                updated[slots.length] = node;
+                return new PersistentXMLChildren[] {new PersistentXMLChildren(updated, null, size + 1)};
+            }
+            return new PersistentXMLChildren[] {this, new PersistentXMLChildren(new Object[] {node}, null, 1)};
+        }
+        int last = slots.length - 1;
+        PersistentXMLChildren[] split = ((PersistentXMLChildren) slots[last]).append(node);
+        Object[] updated = slots.clone();
+        updated[last] = split[0];
+        if (split.length == 1) {
+            int[] updatedEnds = ends.clone();
+            updatedEnds[last]++;
+            return new PersistentXMLChildren[] {new PersistentXMLChildren(updated, updatedEnds, size + 1)};
+        }
+        if (slots.length < WIDTH) {
+            updated = Arrays.copyOf(updated, slots.length + 1);
+            updated[slots.length] = split[1];
+            return new PersistentXMLChildren[] {inner(updated)};
+        }
+        return new PersistentXMLChildren[] {inner(updated), inner(new Object[] {split[1]})};
+    }
+
+    private PersistentXMLChildren without(int index) {
+        if (ends == null) {
+            if (size == 1) {
+                return EMPTY;
+            }
+            Object[] updated = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, updated, 0, index);
+            System.arraycopy(slots, index + 1, updated, index, updated.length - index);
+            return new PersistentXMLChildren(updated, null, size - 1);
+        }
+        int slot = slotOf(index);
+        int offset = slot > 0 ? ends[slot - 1] : 0;
+        PersistentXMLChildren child = ((PersistentXMLChildren) slots[slot]).without(index - offset);
+        if (child.size > 0) {
+            Object[] updated = slots.clone();
+            updated[slot] = child;
+            int[] updatedEnds = ends.clone();
+            for (int i = slot; i < updatedEnds.length; i++) {
+                updatedEnds[i]--;
+            }
+            return new PersistentXMLChildren(updated, updatedEnds, size - 1);
+        }
+        if (slots.length == 1) {
+            return EMPTY;
+        }
+        Object[] updated = new Object[slots.length - 1];
+        System.arraycopy(slots, 0, updated, 0, slot);
+        System.arraycopy(slots, slot + 1, updated, slot, updated.length - slot);
+        return inner(updated);
+    }
+
+    private static PersistentXMLChildren inner(Object[] children) {
+        int[] ends = new int[children.length];
+        int total = 0;
+        for (int i = 0; i < children.length; i++) {
+            total += ((PersistentXMLChildren) children[i]).size;
+            ends[i] = total;
+        }
+        return new PersistentXMLChildren(children, ends, total);
+    }
+
+    /**
+     * @return първият слот, чийто край е след index
+     */
+    private int slotOf(int index) {
+        int low = 0;
+        int high = ends.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (ends[middle] > index) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    private static void checkIndex(int index, int length) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + length);
+        }
+    }
+}
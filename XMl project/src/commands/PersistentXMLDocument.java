@@ -0,0 +1,68 @@
+package commands;
+
+/**
+ * Документ, чието дърво е неизменимо и се променя чрез нови версии
+ * (PersistentXMLTree). Командите set, delete и newchild работят както
+ * обикновено през живите изгледи от getRoot() и findById(), но всяка
+ * промяна копира само променения елемент и предците му - всички други
+ * поддървета се споделят между версиите.
+ *
+ * snapshot() връща версията към момента за O(1), без копиране. Дълга
+ * заявка или запис във файл върху нея виждат документа такъв, какъвто е
+ * бил, докато редакциите продължават, и никой не чака.
+ *
+ * Индексът от ID към елемент се попълва при търсене, както при LEGACY.
+ * Добавените елементи се намират в дървото, затова register() не прави
+ * нищо.
+ *
+ * Пример за употреба:
+ * <pre>
+ * PersistentXMLDocument document = new PersistentXMLDocument(parser.parseXML("data.xml"));
+ * document.findById("auto_3").setTextContent("new");
+ * XMLElement before = document.snapshot();
+ * </pre>
+ */
+public class PersistentXMLDocument extends XMLDocument {
+    private final PersistentXMLTree tree;
+
+    /**
+     * Създава документ с копие на дървото на root. Новите автоматични ID
+     * продължават след най-голямото в дървото.
+     *
+     * @param root коренният елемент
+     */
+    public PersistentXMLDocument(XMLElement root) {
+        this(root, IDManager.continuing(root));
+    }
+
+    /**
+     * Създава документ с копие на дървото на root и генератора, от който
+     * парсерът е взел ID-тата му.
+     *
+     * @param root коренният елемент
+     * @param ids генераторът на документа
+     */
+    PersistentXMLDocument(XMLElement root, IDManager ids) {
+        this(new PersistentXMLTree(PersistentXMLNode.of(root, ids), ids));
+    }
+
+    private PersistentXMLDocument(PersistentXMLTree tree) {
+        super(new PersistentXMLElement(tree, null, tree.root(), tree.root(), 0), tree.ids());
+        this.tree = tree;
+    }
+
+    /**
+     * Връща текущата версия на документа. Тя не се променя от по-късни
+     * редакции и може да се чете от други нишки.
+     *
+     * @return коренът на версията, само за четене
+     */
+    @Override
+    public XMLElement snapshot() {
+        return new PersistentXMLElement(null, null, tree.root(), null, 0);
+    }
+
+    @Override
+    public void register(XMLElement element) {
+    }
+}
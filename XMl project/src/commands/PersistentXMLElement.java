@@ -0,0 +1,287 @@
+package commands;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Изглед към възел на PersistentXMLDocument през интерфейса на XMLElement.
+ *
+ * Изгледът е един от два вида:
+ * - жив (от getRoot() и findById()): винаги показва текущата версия на
+ *   дървото, а промените през него построяват нова версия - копират се
+ *   само възелът и предците му, останалите поддървета се споделят
+ * - от снимка (от snapshot()): показва версията, от която е взет, и не
+ *   може да се променя
+ *
+ * Живият изглед намира възела си в новата версия по автоматичното ID,
+ * тръгвайки от родителя си, и запомня резултата до следващата промяна.
+ * Остарелите предци се обновяват отгоре надолу в цикъл, всеки по веднъж,
+ * така че дълбочината на документа не е ограничена от стека на нишката.
+ * Ако възелът е изтрит, изгледът показва последното му състояние, но не
+ * може да се променя. Живите изгледи са за нишката, която редактира;
+ * другите нишки четат от snapshot().
+ */
+final class PersistentXMLElement extends XMLElement {
+    private static final int INITIAL_DEPTH = 32;
+
+    private final PersistentXMLTree tree;
+    private final PersistentXMLElement parent;
+    private final int autoId;
+    private PersistentXMLNode node;
+    private PersistentXMLNode version;
+    private int index;
+    private boolean attached = true;
+
+    /**
+     * @param tree дървото за жив изглед или null за изглед от снимка
+     * @param parent изгледът на родителя или null за корена
+     * @param node възелът
+     * @param version коренът на версията, в която node е текущ, или null,
+     *                ако живият изглед трябва да го намери при първия достъп
+     * @param index позицията на възела сред децата на родителя
+     */
+    PersistentXMLElement(PersistentXMLTree tree, PersistentXMLElement parent, PersistentXMLNode node,
+                         PersistentXMLNode version, int index) {
+        this.tree = tree;
+        this.parent = parent;
+        this.autoId = node.autoId();
+        this.node = node;
+        this.version = version;
+        this.index = index;
+    }
+
+    @Override
+    public String getId() {
+        return "auto_" + autoId;
+    }
+
+    @Override
+    public String getTag() {
+        return node().tag();
+    }
+
+    @Override
+    public String getTextContent() {
+        return node().text();
+    }
+
+    @Override
+    public void setTextContent(String text) {
+        synchronized (tree()) {
+            replace(editableNode().withText(text));
+        }
+    }
+
+    @Override
+    public void setAttribute(String key, String value) {
+        synchronized (tree()) {
+            replace(editableNode().withAttribute(key, value));
+        }
+    }
+
+    @Override
+    public String getAttribute(String key) {
+        return node().attribute(key);
+    }
+
+    @Override
+    public String removeAttribute(String key) {
+        synchronized (tree()) {
+            PersistentXMLNode current = editableNode();
+            String value = current.attribute(key);
+            replace(current.withoutAttribute(key));
+            return value;
+        }
+    }
+
+    @Override
+    public Map<String, String> getAttributes() {
+        return Collections.unmodifiableMap(node().attributes());
+    }
+
+    /**
+     * Добавя елемента като последно дете. Елемент от същия вид се споделя,
+     * а всеки друг се копира заедно с поддървото си.
+     */
+    @Override
+    public void addChild(XMLElement child) {
+        PersistentXMLNode added = PersistentXMLNode.of(child, tree().ids());
+        synchronized (tree()) {
+            replace(editableNode().withAddedChild(added));
+        }
+    }
+
+    @Override
+    public List<XMLElement> getChildren() {
+        return new ChildList(node());
+    }
+
+    @Override
+    public XMLElement getParent() {
+        return parent;
+    }
+
+    @Override
+    public void setParent(XMLElement parent) {
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof PersistentXMLElement)) {
+            return false;
+        }
+        PersistentXMLElement element = (PersistentXMLElement) other;
+        if (tree == null) {
+            return element.tree == null && element.node == node;
+        }
+        return element.tree == tree && element.autoId == autoId;
+    }
+
+    @Override
+    public int hashCode() {
+        return autoId;
+    }
+
+    /**
+     * Връща възела в текущата версия (за изглед от снимка - във версията
+     * на снимката).
+     */
+    PersistentXMLNode node() {
+        if (tree == null) {
+            return node;
+        }
+        PersistentXMLNode root = tree.root();
+        if (version == root || !attached) {
+            return node;
+        }
+        // Изгледите от този нагоре до първия актуален (или откачен) предшественик.
+        PersistentXMLElement[] stale = new PersistentXMLElement[INITIAL_DEPTH];
+        int count = 0;
+        for (PersistentXMLElement view = this; view != null && view.version != root && view.attached; view = view.parent) {
+            if (count == stale.length) {
+                stale = Arrays.copyOf(stale, count * 2);
+            }
+            stale[count++] = view;
+        }
+        for (int i = count - 1; i >= 0; i--) {
+            stale[i].resolve(root);
+        }
+        return node;
+    }
+
+    /**
+     * Намира възела във версията root; родителят вече е обновен.
+     */
+    private void resolve(PersistentXMLNode root) {
+        if (parent == null) {
+            node = root;
+        } else {
+            int position = parent.attached ? parent.node.indexOfChild(autoId, index) : -1;
+            if (position < 0) {
+                attached = false;
+                return;
+            }
+            node = parent.node.child(position);
+            index = position;
+        }
+        version = root;
+    }
+
+    private PersistentXMLTree tree() {
+        if (tree == null) {
+            throw new UnsupportedOperationException("Snapshot elements are read-only");
+        }
+        return tree;
+    }
+
+    private PersistentXMLNode editableNode() {
+        PersistentXMLNode current = node();
+        if (!attached) {
+            throw new IllegalStateException("Element " + getId() + " is no longer in the document");
+        }
+        return current;
+    }
+
+    /**
+     * Заменя възела с updated в нова версия на дървото: родителят получава
+     * копие с новото дете и така нагоре до корена, който се публикува.
+     * Пътят вече е обновен от editableNode(), така че всеки предшественик
+     * се копира веднъж, отдолу нагоре.
+     */
+    private void replace(PersistentXMLNode updated) {
+        PersistentXMLElement[] path = new PersistentXMLElement[INITIAL_DEPTH];
+        int count = 0;
+        for (PersistentXMLElement view = this; view != null; view = view.parent) {
+            if (count == path.length) {
+                path = Arrays.copyOf(path, count * 2);
+            }
+            path[count++] = view;
+        }
+        path[0].node = updated;
+        for (int i = 1; i < count; i++) {
+            path[i].node = path[i].node.withChild(path[i - 1].index, path[i - 1].node);
+        }
+        tree.publish(path[count - 1].node);
+        for (int i = 0; i < count; i++) {
+            path[i].version = path[count - 1].node;
+        }
+    }
+
+    private void removeChild(int childAutoId) {
+        synchronized (tree()) {
+            PersistentXMLNode current = editableNode();
+            int position = current.indexOfChild(childAutoId, -1);
+            if (position >= 0) {
+                replace(current.withoutChild(position));
+            }
+        }
+    }
+
+    /**
+     * Децата във версията към момента на създаване на списъка.
+     * Премахването изтрива детето от дървото; добавя се само в края.
+     */
+    private final class ChildList extends AbstractList<XMLElement> implements RandomAccess {
+        private PersistentXMLNode children;
+
+        ChildList(PersistentXMLNode children) {
+            this.children = children;
+        }
+
+        @Override
+        public XMLElement get(int index) {
+            return new PersistentXMLElement(tree, PersistentXMLElement.this, children.child(index), null, index);
+        }
+
+        @Override
+        public int size() {
+            return children.childCount();
+        }
+
+        @Override
+        public XMLElement remove(int index) {
+            XMLElement removed = get(index);
+            removeChild(children.child(index).autoId());
+            children = children.withoutChild(index);
+            modCount++;
+            return removed;
+        }
+
+        @Override
+        public void add(int index, XMLElement element) {
+            if (index != size()) {
+                throw new UnsupportedOperationException("Children can only be added at the end");
+            }
+            PersistentXMLNode added = PersistentXMLNode.of(element, tree().ids());
+            synchronized (tree()) {
+                replace(editableNode().withAddedChild(added));
+            }
+            children = children.withAddedChild(added);
+            modCount++;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package commands;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Неизменим възел на PersistentXMLDocument. Всяка промяна връща нов възел,
+ * който споделя с предишния всички непроменени части - масива на
+ * атрибутите, текста и самите деца. Децата са в PersistentXMLChildren, така
+ * че промяна на едно дете не копира целия списък. Затова една версия на
+ * дървото никога не се променя и може да се чете без заключване.
+ *
+ * Атрибутите са двойки име/стойност в един масив, в реда на добавянето им.
+ * Възелът се разпознава по автоматичното си ID; децата, създадени от
+ * парсера и от addChild, са подредени по него, затова детето се търси с
+ * двоично търсене.
+ */
+final class PersistentXMLNode {
+    private static final PersistentXMLNode[] NO_CHILDREN = new PersistentXMLNode[0];
+
+    private final String tag;
+    private final int autoId;
+    private final String[] attributes;
+    private final String text;
+    private final PersistentXMLChildren children;
+
+    private PersistentXMLNode(String tag, int autoId, String[] attributes, String text, PersistentXMLChildren children) {
+        this.tag = tag;
+        this.autoId = autoId;
+        this.attributes = attributes;
+        this.text = text;
+        this.children = children;
+    }
+
+    /**
+     * Копира елемента и поддървото му. Изгледите на PersistentXMLDocument
+     * не се копират, а споделят възела си. Възлите се строят отдолу нагоре
+     * в post-order, без рекурсия. Елемент без автоматично ID получава нов
+     * номер от ids.
+     *
+     * @param element елементът
+     * @param ids генераторът на документа
+     * @return възелът
+     */
+    static PersistentXMLNode of(XMLElement element, IDManager ids) {
+        if (element instanceof PersistentXMLElement) {
+            return ((PersistentXMLElement) element).node();
+        }
+        Deque<PersistentXMLNode> built = new ArrayDeque<>();
+        Iterator<XMLElement> it = element.postOrderIterator();
+        while (it.hasNext()) {
+            XMLElement next = it.next();
+            int count = next.getChildren().size();
+            PersistentXMLNode[] children = count == 0 ? NO_CHILDREN : new PersistentXMLNode[count];
+            for (int c = count - 1; c >= 0; c--) {
+                children[c] = built.pop();
+            }
+            built.push(copy(next, children, ids));
+        }
+        return built.pop();
+    }
+
+    private static PersistentXMLNode copy(XMLElement element, PersistentXMLNode[] children, IDManager ids) {
+        String id = element.getId();
+        boolean assigned = !id.startsWith("auto_");
+        int autoId = assigned ? ids.next() : Integer.parseInt(id.substring(5));
+        Map<String, String> source = element.getAttributes();
+        String[] attributes = new String[source.size() * 2];
+        int i = 0;
+        for (Map.Entry<String, String> attribute : source.entrySet()) {
+            String value = attribute.getValue();
+            if (assigned && attribute.getKey().equals("id") && value.equals(id)) {
+                value = "auto_" + autoId;
+            }
+            attributes[i++] = attribute.getKey();
+            attributes[i++] = value;
+        }
+        return new PersistentXMLNode(element.getTag(), autoId, attributes, element.getTextContent(),
+                PersistentXMLChildren.of(children));
+    }
+
+    String tag() {
+        return tag;
+    }
+
+    int autoId() {
+        return autoId;
+    }
+
+    String text() {
+        return text;
+    }
+
+    int childCount() {
+        return children.size();
+    }
+
+    PersistentXMLNode child(int index) {
+        return children.get(index);
+    }
+
+    String attribute(String key) {
+        int index = indexOfAttribute(key);
+        return index >= 0 ? attributes[index + 1] : null;
+    }
+
+    Map<String, String> attributes() {
+        Map<String, String> result = new XMLAttributeMap();
+        for (int i = 0; i < attributes.length; i += 2) {
+            result.put(attributes[i], attributes[i + 1]);
+        }
+        return result;
+    }
+
+    /**
+     * Намира детето с дадено автоматично ID.
+     *
+     * @param childAutoId автоматичното ID на детето
+     * @param hint вероятната позиция (например от предишно търсене)
+     * @return позицията на детето или -1
+     */
+    int indexOfChild(int childAutoId, int hint) {
+        int count = children.size();
+        if (hint >= 0 && hint < count && children.get(hint).autoId == childAutoId) {
+            return hint;
+        }
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int middleId = children.get(middle).autoId;
+            if (middleId < childAutoId) {
+                low = middle + 1;
+            } else if (middleId > childAutoId) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (children.get(i).autoId == childAutoId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    PersistentXMLNode withText(String text) {
+        return new PersistentXMLNode(tag, autoId, attributes, text, children);
+    }
+
+    PersistentXMLNode withAttribute(String key, String value) {
+        int index = indexOfAttribute(key);
+        String[] updated;
+        if (index >= 0) {
+            updated = attributes.clone();
+        } else {
+            index = attributes.length;
+            updated = Arrays.copyOf(attributes, attributes.length + 2);
+            updated[index] = key;
+        }
+        updated[index + 1] = value;
+        return new PersistentXMLNode(tag, autoId, updated, text, children);
+    }
+
+    PersistentXMLNode withoutAttribute(String key) {
+        int index = indexOfAttribute(key);
+        if (index < 0) {
+            return this;
+        }
+        String[] updated = new String[attributes.length - 2];
+        System.arraycopy(attributes, 0, updated, 0, index);
+        System.arraycopy(attributes, index + 2, updated, index, updated.length - index);
+        return new PersistentXMLNode(tag, autoId, updated, text, children);
+    }
+
+    PersistentXMLNode withChild(int index, PersistentXMLNode child) {
+        return new PersistentXMLNode(tag, autoId, attributes, text, children.set(index, child));
+    }
+
+    PersistentXMLNode withAddedChild(PersistentXMLNode child) {
+        return new PersistentXMLNode(tag, autoId, attributes, text, children.add(child));
+    }
+
+    PersistentXMLNode withoutChild(int index) {
+        return new PersistentXMLNode(tag, autoId, attributes, text, children.remove(index));
+    }
+
+    private int indexOfAttribute(String key) {
+        for (int i = 0; i < attributes.length; i += 2) {
+            if (attributes[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,32 @@
+package commands;
+
+/**
+ * Текущата версия на неизменимо дърво от PersistentXMLNode. Всяка промяна
+ * построява нов корен (копирайки само възлите по пътя до променения) и го
+ * публикува с един запис във volatile поле. Който е взел корена преди
+ * това, продължава да чете непроменената си версия.
+ *
+ * Промените се правят в synchronized (tree), така че две промени не
+ * губят една друга; четенето не заключва.
+ */
+final class PersistentXMLTree {
+    private volatile PersistentXMLNode root;
+    private final IDManager ids;
+
+    PersistentXMLTree(PersistentXMLNode root, IDManager ids) {
+        this.root = root;
+        this.ids = ids;
+    }
+
+    PersistentXMLNode root() {
+        return root;
+    }
+
+    IDManager ids() {
+        return ids;
+    }
+
+    void publish(PersistentXMLNode root) {
+        this.root = root;
+    }
+}
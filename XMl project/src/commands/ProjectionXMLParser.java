@@ -0,0 +1,240 @@
+package commands;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Парсва само частта от документа, която отговаря на зададени пътища,
+ * например "book/title". Пътищата се тълкуват както в query: всяка стъпка
+ * търси сред наследниците (и самия елемент) на предишната.
+ *
+ * Документът се обхожда веднъж с XMLOffsetIndex, без да се създават възли.
+ * След това изцяло се парсват само елементите, които съвпадат с целия път,
+ * заедно с поддърветата им. Техните предци се създават само с атрибутите
+ * си, за да остане дървото свързано. Клоните без съвпадение изобщо не се
+ * декодират. Обхождането използва явен стек, така че дълбочината на
+ * документа не е ограничена от стека на нишката.
+ *
+ * ID-тата на създадените елементи са същите като при пълно парсване.
+ *
+ * Пример за употреба:
+ * <pre>
+ * XMLElement root = new ProjectionXMLParser(List.of("book/title")).parse("books.xml");
+ * // root съдържа само book елементите и техните title деца
+ * </pre>
+ */
+public class ProjectionXMLParser {
+    private static final int INITIAL_DEPTH = 32;
+
+    private final String[][] patterns;
+    private final SinglePassXMLParser fragmentParser = new SinglePassXMLParser();
+
+    /**
+     * Създава парсър за един или повече пътища.
+     *
+     * @param paths пътищата, например "book/title" или "magazine"
+     * @throws IllegalArgumentException ако няма пътища или някой е празен
+     */
+    public ProjectionXMLParser(List<String> paths) {
+        if (paths.isEmpty()) {
+            throw new IllegalArgumentException("At least one path is required");
+        }
+        patterns = new String[paths.size()][];
+        for (int i = 0; i < paths.size(); i++) {
+            List<String> steps = new ArrayList<>();
+            for (String step : paths.get(i).split("/")) {
+                if (!step.isEmpty()) {
+                    steps.add(step.intern());
+                }
+            }
+            if (steps.isEmpty()) {
+                throw new IllegalArgumentException("Empty path: " + paths.get(i));
+            }
+            patterns[i] = steps.toArray(new String[0]);
+        }
+    }
+
+    /**
+     * Картографира файла и парсва само избраните елементи. Файлове над 2 GB
+     * не се побират в един буфер и се парсват изцяло на прозорци; gzip
+     * файлове също се парсват изцяло, защото не могат да се картографират.
+     *
+     * @param filename път до XML файла
+     * @return коренът с избраните елементи
+     * @throws IOException ако файлът не може да бъде прочетен или съдържа невалиден XML
+     */
+    public XMLElement parse(String filename) throws IOException {
+        return parseDocument(filename).getRoot();
+    }
+
+    /**
+     * Като parse(filename), но връща документ с генератора на автоматичните
+     * ID, така че новите елементи не повтарят ID-тата на файла.
+     *
+     * @param filename път до XML файла
+     * @return документът с корена с избраните елементи
+     * @throws IOException ако файлът не може да бъде прочетен или съдържа невалиден XML
+     */
+    public XMLDocument parseDocument(String filename) throws IOException {
+        if (XMLParser.isGzip(filename)) {
+            return new XMLParser().parseDocument(filename, ParseMode.SINGLE_PASS);
+        }
+        ByteBuffer document;
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                document = null;
+            } else {
+                document = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+        if (document == null) {
+            IDManager ids = new IDManager();
+            try (XMLEventCursor cursor = XMLEventCursor.open(filename)) {
+                return new XMLDocument(new SinglePassXMLParser().parse(cursor, ids), ids);
+            }
+        }
+        return parseDocument(document);
+    }
+
+    /**
+     * Парсва само избраните елементи от документ, кодиран в UTF-8.
+     *
+     * @param input байтовете на документа
+     * @return коренът с избраните елементи
+     * @throws IOException ако XML не е добре форматиран
+     */
+    public XMLElement parse(ByteBuffer input) throws IOException {
+        return parseDocument(input).getRoot();
+    }
+
+    /**
+     * Като parse(input), но връща документ с генератора на автоматичните ID.
+     *
+     * @param input байтовете на документа
+     * @return документът с корена с избраните елементи
+     * @throws IOException ако XML не е добре форматиран
+     */
+    public XMLDocument parseDocument(ByteBuffer input) throws IOException {
+        XMLOffsetIndex index = XMLOffsetIndex.build(input.slice());
+        IDManager ids = new IDManager();
+        int firstAutoId = ids.reserve(index.size());
+        XMLElement root = project(index, firstAutoId);
+        if (root == null) {
+            root = new XMLElement(index.tagName(0), firstAutoId);
+            index.readAttributes(0, root);
+        }
+        return new XMLDocument(root, ids);
+    }
+
+    /**
+     * Обхожда индекса с явен стек и връща корена на проектираното дърво.
+     * Всяка рамка пази елемента, докъде е стигнало съвпадението на всеки път
+     * при него, следващото му дете и създадения за него елемент - той се
+     * създава едва когато някое дете съвпадне. Така дълбочината на файла не
+     * зависи от стека на нишката.
+     *
+     * @return коренът или null, ако в документа няма съвпадение
+     */
+    private XMLElement project(XMLOffsetIndex index, int firstAutoId) throws IOException {
+        int[] state = match(index.tagName(0), new int[patterns.length]);
+        if (state == null) {
+            return parseMatch(index, 0, firstAutoId);
+        }
+        int[] elements = new int[INITIAL_DEPTH];
+        int[][] states = new int[INITIAL_DEPTH][];
+        int[] next = new int[INITIAL_DEPTH];
+        XMLElement[] projected = new XMLElement[INITIAL_DEPTH];
+        elements[0] = 0;
+        states[0] = state;
+        next[0] = 1;
+        int depth = 1;
+        while (true) {
+            int top = depth - 1;
+            int element = elements[top];
+            if (next[top] < index.subtreeEnd(element)) {
+                int child = next[top];
+                next[top] = index.subtreeEnd(child);
+                int[] childState = match(index.tagName(child), states[top]);
+                if (childState == null) {
+                    attach(index, elements[top], projected, top, parseMatch(index, child, firstAutoId), firstAutoId);
+                    continue;
+                }
+                if (depth == elements.length) {
+                    elements = Arrays.copyOf(elements, depth * 2);
+                    states = Arrays.copyOf(states, depth * 2);
+                    next = Arrays.copyOf(next, depth * 2);
+                    projected = Arrays.copyOf(projected, depth * 2);
+                }
+                elements[depth] = child;
+                states[depth] = childState;
+                next[depth] = child + 1;
+                projected[depth] = null;
+                depth++;
+            } else {
+                XMLElement done = projected[top];
+                projected[top] = null;
+                states[top] = null;
+                depth--;
+                if (depth == 0) {
+                    return done;
+                }
+                if (done != null) {
+                    attach(index, elements[depth - 1], projected, depth - 1, done, firstAutoId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Продължава съвпадението на всеки път с тага на елемент.
+     *
+     * @param matched колко стъпки от всеки път са изпълнени от предците
+     * @return колко стъпки са изпълнени с елемента или null, ако някой път
+     *         съвпада изцяло
+     */
+    private int[] match(String tag, int[] matched) {
+        int[] state = new int[patterns.length];
+        for (int p = 0; p < patterns.length; p++) {
+            String[] steps = patterns[p];
+            int s = matched[p];
+            while (s < steps.length && steps[s] == tag) {
+                s++;
+            }
+            if (s == steps.length) {
+                return null;
+            }
+            state[p] = s;
+        }
+        return state;
+    }
+
+    /**
+     * Парсва изцяло елемент, който съвпада с път, заедно с поддървото му.
+     */
+    private XMLElement parseMatch(XMLOffsetIndex index, int element, int firstAutoId) throws IOException {
+        XMLEventCursor cursor = index.cursor(index.start(element), index.end(element));
+        return fragmentParser.parseFragment(cursor, firstAutoId + element, null).get(0);
+    }
+
+    /**
+     * Добавя match като последно дете на елемента от рамката frame, като
+     * създава елемента само с атрибутите му, ако още го няма.
+     */
+    private static void attach(XMLOffsetIndex index, int element, XMLElement[] projected, int frame,
+                               XMLElement match, int firstAutoId) throws IOException {
+        XMLElement parent = projected[frame];
+        if (parent == null) {
+            parent = new XMLElement(index.tagName(element), firstAutoId + element);
+            index.readAttributes(element, parent);
+            projected[frame] = parent;
+        }
+        match.setParent(parent);
+        parent.addChild(match);
+    }
+}
@@ -0,0 +1,402 @@
+package commands;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Строи дърво от XMLElement възли върху събитията на XMLEventCursor.
+ * Входът се обхожда точно веднъж: отворените елементи се пазят в явен
+ * стек, а всеки възел се създава при отварящия таг и се закачат към
+ * родителя си веднага. Проверката за добре формиран XML се извършва от
+ * курсора в същото обхождане.
+ *
+ * Полученото дърво е същото като при XMLParser в режим LEGACY:
+ * - текстово съдържание се пази само за елементи без дъщерни елементи
+ * - текстът се изрязва от празни символи в двата края
+ * - атрибути, започващи с xmlns, се пропускат
+ *
+ * Парсър, създаден със sliceText = true (режим SLICED), не копира текста и
+ * стойностите на атрибутите (без "id"), а ги пази като XMLTextSlice към
+ * масива на входа; String се създава едва при getTextContent() или
+ * getAttribute(). Това е възможно само ако входът е ByteBuffer върху масив
+ * (не картографиран файл и не поток), и тогава масивът остава в паметта,
+ * докато дървото се използва.
+ *
+ * Автоматичните ID се вземат от IDManager на документа на блокове по
+ * ID_BLOCK_SIZE; неизползваният край на последния блок се връща в края на
+ * парсването, така че номерата на документа са последователни от 1.
+ *
+ * Пример за употреба:
+ * <pre>
+ * SinglePassXMLParser parser = new SinglePassXMLParser();
+ * XMLElement root = parser.parse("&lt;root&gt;&lt;child/&gt;&lt;/root&gt;");
+ * </pre>
+ */
+public class SinglePassXMLParser {
+    private static final int INITIAL_DEPTH = 32;
+    private static final int STREAM_CHUNK_SIZE = 64 * 1024;
+    private static final int ID_BLOCK_SIZE = 1024;
+
+    private XMLElement[] stack = new XMLElement[INITIAL_DEPTH];
+    private int depth;
+    private final boolean sliceText;
+    private String pendingText;
+    private XMLTextSlice pendingSlice;
+    private final StringBuilder textBuffer = new StringBuilder();
+    private int textRuns;
+    private IDManager ids;
+    private int nextAutoId;
+    private int autoIdLimit;
+    private XMLElementListener listener;
+    private Map<String, XMLElement> idIndex;
+    private XMLDocumentOrder order;
+    private int nextOrder;
+
+    public SinglePassXMLParser() {
+        this(false);
+    }
+
+    /**
+     * @param sliceText true, ако текстът и стойностите на атрибутите трябва
+     *                  да сочат входа, вместо да се копират
+     */
+    public SinglePassXMLParser(boolean sliceText) {
+        this.sliceText = sliceText;
+    }
+
+    /**
+     * Парсва XML низ и връща коренния елемент на полученото дърво.
+     *
+     * @param xml целият XML документ
+     * @return коренен елемент на парснатото XML дърво
+     * @throws IOException ако XML не е добре форматиран
+     */
+    public XMLElement parse(String xml) throws IOException {
+        return parse(ByteBuffer.wrap(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Парсва XML документ, кодиран в UTF-8, от байтовете между position и limit на буфера.
+     *
+     * @param input байтовете на документа
+     * @return коренен елемент на парснатото XML дърво
+     * @throws IOException ако XML не е добре форматиран
+     */
+    public XMLElement parse(ByteBuffer input) throws IOException {
+        return parse(new XMLEventCursor(input));
+    }
+
+    /**
+     * Строи дърво от всички оставащи събития на курсора.
+     *
+     * @param cursor курсор, позициониран преди първото събитие
+     * @return коренен елемент на парснатото XML дърво
+     * @throws IOException ако XML не е добре форматиран
+     */
+    public XMLElement parse(XMLEventCursor cursor) throws IOException {
+        return parse(cursor, new IDManager());
+    }
+
+    /**
+     * Като parse(cursor), но автоматичните ID се вземат от ids.
+     *
+     * @param cursor курсор, позициониран преди първото събитие
+     * @param ids генераторът на документа
+     * @return коренен елемент на парснатото XML дърво
+     * @throws IOException ако XML не е добре форматиран
+     */
+    XMLElement parse(XMLEventCursor cursor, IDManager ids) throws IOException {
+        List<XMLElement> topLevel = new ArrayList<>(1);
+        useIds(ids);
+        build(cursor, topLevel);
+        return topLevel.get(0);
+    }
+
+    /**
+     * Строи дърво от всички оставащи събития на курсора и докато създава
+     * възлите, попълва индекс от ID към елемент.
+     *
+     * @param cursor курсор, позициониран преди първото събитие
+     * @return документът с корена и индекса
+     * @throws IOException ако XML не е добре форматиран
+     */
+    public XMLDocument parseDocument(XMLEventCursor cursor) throws IOException {
+        Map<String, XMLElement> index = new HashMap<>();
+        IDManager ids = new IDManager();
+        idIndex = index;
+        try {
+            return new XMLDocument(parse(cursor, ids), index, ids);
+        } finally {
+            idIndex = null;
+        }
+    }
+
+    /**
+     * Парсва документ, кодиран в UTF-8, и попълва индекс от ID към елемент.
+     *
+     * @param input байтовете на документа
+     * @return документът с корена и индекса
+     * @throws IOException ако XML не е добре форматиран
+     */
+    public XMLDocument parseDocument(ByteBuffer input) throws IOException {
+        return parseDocument(new XMLEventCursor(input));
+    }
+
+    /**
+     * Парсва документ, който се чете от поток (например разархивиран gzip),
+     * и попълва индекс от ID към елемент. Потокът се чете на части и се
+     * подава на инкрементален курсор, така че целият вход никога не е в паметта.
+     * Потокът не се затваря.
+     *
+     * @param in потокът с байтовете на документа (UTF-8)
+     * @return документът с корена и индекса
+     * @throws IOException ако потокът не може да бъде прочетен или XML не е добре форматиран
+     */
+    public XMLDocument parseDocument(InputStream in) throws IOException {
+        XMLEventCursor cursor = XMLEventCursor.incremental();
+        List<XMLElement> topLevel = new ArrayList<>(1);
+        Map<String, XMLElement> index = new HashMap<>();
+        IDManager ids = new IDManager();
+        useIds(ids);
+        idIndex = index;
+        try {
+            byte[] chunk = new byte[STREAM_CHUNK_SIZE];
+            int n;
+            while ((n = in.read(chunk)) != -1) {
+                cursor.feed(ByteBuffer.wrap(chunk, 0, n));
+                advance(cursor, topLevel);
+            }
+            cursor.endOfInput();
+            advance(cursor, topLevel);
+        } finally {
+            idIndex = null;
+            clear();
+        }
+        return new XMLDocument(topLevel.get(0), index, ids);
+    }
+
+    /**
+     * Строи елементите от фрагмент (курсор в режим на фрагмент) и връща
+     * тези от най-горно ниво в реда им във файла. Автоматичните ID се вземат
+     * последователно от firstAutoId, без да се докосва IDManager.
+     *
+     * @param cursor курсор върху фрагмента
+     * @param firstAutoId номерът за първия създаден елемент
+     * @param idIndex индекс, който да се попълни, или null
+     * @return елементите от най-горно ниво
+     * @throws IOException ако фрагментът не е добре форматиран
+     */
+    List<XMLElement> parseFragment(XMLEventCursor cursor, int firstAutoId, Map<String, XMLElement> idIndex) throws IOException {
+        List<XMLElement> topLevel = new ArrayList<>();
+        ids = null;
+        nextAutoId = firstAutoId;
+        autoIdLimit = Integer.MAX_VALUE;
+        this.idIndex = idIndex;
+        try {
+            build(cursor, topLevel);
+        } finally {
+            this.idIndex = null;
+        }
+        return topLevel;
+    }
+
+    /**
+     * Задава получател, който се уведомява за всеки елемент веднага след
+     * затварящия му таг, когато дървото под него вече е пълно.
+     *
+     * @param listener получателят или null
+     */
+    void setListener(XMLElementListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Задава генератора, от който advance() взема автоматичните ID до
+     * следващото clear().
+     *
+     * @param ids генераторът на документа
+     */
+    void useIds(IDManager ids) {
+        this.ids = ids;
+        nextAutoId = 0;
+        autoIdLimit = 0;
+    }
+
+    private void build(XMLEventCursor cursor, List<XMLElement> topLevel) throws IOException {
+        depth = 0;
+        try {
+            if (!advance(cursor, topLevel)) {
+                throw new IllegalStateException("Cursor needs more input; use IncrementalXMLParser");
+            }
+        } finally {
+            clear();
+        }
+    }
+
+    /**
+     * Обработва събитията на курсора, докато те свършат или курсорът поиска
+     * още вход. Отворените елементи остават в стека, така че следващото
+     * извикване продължава от същото място.
+     *
+     * @return true при END_DOCUMENT, false при NEED_INPUT
+     */
+    boolean advance(XMLEventCursor cursor, List<XMLElement> topLevel) throws IOException {
+        while (true) {
+            switch (cursor.next()) {
+                case START_ELEMENT:
+                    if (nextAutoId == autoIdLimit) {
+                        nextAutoId = ids.reserve(ID_BLOCK_SIZE);
+                        autoIdLimit = nextAutoId + ID_BLOCK_SIZE;
+                    }
+                    XMLElement element = new XMLElement(cursor.getName(), nextAutoId++);
+                    if (order == null) {
+                        order = new XMLDocumentOrder();
+                    }
+                    element.setOrder(order, nextOrder++);
+                    if (depth > 0) {
+                        XMLElement parent = stack[depth - 1];
+                        element.setParent(parent);
+                        parent.addChild(element);
+                    } else {
+                        topLevel.add(element);
+                    }
+                    push(element);
+                    textRuns = 0;
+                    if (idIndex != null) {
+                        idIndex.putIfAbsent(element.getId(), element);
+                    }
+                    break;
+                case ATTRIBUTE:
+                    if (!cursor.isNamespaceDeclaration()) {
+                        XMLElement owner = stack[depth - 1];
+                        String name = cursor.getAttributeName();
+                        XMLTextSlice slice = sliceText && !name.equals("id") ? cursor.getAttributeValueSlice() : null;
+                        if (slice != null) {
+                            owner.setAttributeSlice(name, slice);
+                            break;
+                        }
+                        String value = cursor.getAttributeValue();
+                        owner.setAttribute(name, value);
+                        if (idIndex != null && name.equals("id")) {
+                            idIndex.remove(owner.getId(), owner);
+                            idIndex.putIfAbsent(value, owner);
+                        }
+                    }
+                    break;
+                case TEXT:
+                    collectText(cursor);
+                    break;
+                case END_ELEMENT:
+                    XMLElement closed = stack[--depth];
+                    stack[depth] = null;
+                    closed.setOrderEnd(nextOrder - 1);
+                    if (closed.getChildren().isEmpty()) {
+                        setText(closed);
+                    }
+                    textRuns = 0;
+                    if (listener != null) {
+                        listener.elementClosed(closed);
+                    }
+                    break;
+                case NEED_INPUT:
+                    return false;
+                case END_DOCUMENT:
+                    if (order != null && listener == null && topLevel.size() == 1) {
+                        order.complete();
+                    }
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * Освобождава стека и натрупания текст и връща неизползваните ID, за да
+     * може парсърът да се използва отново.
+     */
+    void clear() {
+        Arrays.fill(stack, null);
+        depth = 0;
+        textRuns = 0;
+        pendingText = null;
+        pendingSlice = null;
+        order = null;
+        nextOrder = 0;
+        if (ids != null) {
+            ids.release(nextAutoId, autoIdLimit);
+            ids = null;
+        }
+        nextAutoId = 0;
+        autoIdLimit = 0;
+    }
+
+    /**
+     * Текстът на елемент с деца се пренебрегва, затова се декодира само
+     * текстът на текущия елемент, докато той още няма деца. Ако текстът е
+     * разделен от коментари или CDATA, частите се събират в буфер.
+     */
+    private void collectText(XMLEventCursor cursor) {
+        if (!stack[depth - 1].getChildren().isEmpty()) {
+            return;
+        }
+        if (textRuns == 0) {
+            if (cursor.isWhitespace()) {
+                return;
+            }
+            pendingSlice = sliceText ? cursor.getTextSlice() : null;
+            pendingText = pendingSlice == null ? cursor.getText() : null;
+        } else {
+            if (textRuns == 1) {
+                textBuffer.setLength(0);
+                textBuffer.append(pendingSlice != null ? pendingSlice.toString() : pendingText);
+                pendingSlice = null;
+            }
+            textBuffer.append(cursor.getText());
+        }
+        textRuns++;
+    }
+
+    private void setText(XMLElement element) {
+        if (textRuns == 0) {
+            return;
+        }
+        if (textRuns == 1 && pendingSlice != null) {
+            XMLTextSlice slice = pendingSlice.trim();
+            pendingSlice = null;
+            if (slice.contains('\r')) {
+                element.setTextContent(normalizeNewlines(slice.toString()));
+            } else if (!slice.isEmpty()) {
+                element.setTextSlice(slice);
+            }
+            return;
+        }
+        String text = (textRuns == 1 ? pendingText : textBuffer.toString()).trim();
+        pendingText = null;
+        if (!text.isEmpty()) {
+            element.setTextContent(normalizeNewlines(text));
+        }
+    }
+
+    /**
+     * XMLParser в режим LEGACY чете файла ред по ред, така че "\r\n" става "\n".
+     */
+    static String normalizeNewlines(String text) {
+        if (text.indexOf('\r') == -1) {
+            return text;
+        }
+        return text.replace("\r\n", "\n").replace('\r', '\n');
+    }
+
+    private void push(XMLElement element) {
+        if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+        }
+        stack[depth++] = element;
+    }
+}
@@ -0,0 +1,247 @@
+package commands;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Map за атрибутите на елемент. Повечето елементи имат от един до три
+ * атрибута (включително "id"), затова ключовете и стойностите се пазят
+ * последователно в един масив и се търсят линейно - без таблица и без
+ * обект за всеки запис, както при HashMap. След INLINE_LIMIT атрибута
+ * записите се преместват в LinkedHashMap.
+ *
+ * Атрибутите се обхождат в реда на добавянето им, така че print и save
+ * ги извеждат в реда от документа (с "id" най-отпред).
+ *
+ * В режим SLICED стойността може да е XMLTextSlice вместо String; тя се
+ * декодира при всяко четене, а не при парсването.
+ */
+final class XMLAttributeMap extends AbstractMap<String, String> {
+    private static final int INLINE_LIMIT = 8;
+    private static final int INITIAL_PAIRS = 3;
+
+    private CharSequence[] pairs = new CharSequence[INITIAL_PAIRS * 2];
+    private int size;
+    private Map<String, String> table;
+    private int modCount;
+    private Set<Map.Entry<String, String>> entrySet;
+
+    @Override
+    public int size() {
+        return table != null ? table.size() : size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return table != null ? table.containsKey(key) : indexOf(key) >= 0;
+    }
+
+    @Override
+    public String get(Object key) {
+        if (table != null) {
+            return table.get(key);
+        }
+        int index = indexOf(key);
+        return index >= 0 ? valueAt(index) : null;
+    }
+
+    @Override
+    public String put(String key, String value) {
+        return putValue(key, value);
+    }
+
+    /**
+     * Добавя атрибут, чиято стойност е отрязък от входа, без да я декодира.
+     *
+     * @param key името на атрибута
+     * @param value стойността
+     */
+    void putSlice(String key, XMLTextSlice value) {
+        putValue(key, value);
+    }
+
+    private String putValue(String key, CharSequence value) {
+        if (table != null) {
+            return table.put(key, value != null ? value.toString() : null);
+        }
+        int index = indexOf(key);
+        if (index >= 0) {
+            String previous = valueAt(index);
+            pairs[index + 1] = value;
+            return previous;
+        }
+        if (size == INLINE_LIMIT) {
+            table = new LinkedHashMap<>();
+            for (int i = 0; i < size * 2; i += 2) {
+                table.put((String) pairs[i], valueAt(i));
+            }
+            pairs = null;
+            size = 0;
+            modCount++;
+            return table.put(key, value != null ? value.toString() : null);
+        }
+        if (size * 2 == pairs.length) {
+            pairs = Arrays.copyOf(pairs, pairs.length * 2);
+        }
+        pairs[size * 2] = key;
+        pairs[size * 2 + 1] = value;
+        size++;
+        modCount++;
+        return null;
+    }
+
+    @Override
+    public String remove(Object key) {
+        if (table != null) {
+            return table.remove(key);
+        }
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        String previous = valueAt(index);
+        removeAt(index);
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        if (table != null) {
+            table.clear();
+            return;
+        }
+        Arrays.fill(pairs, 0, size * 2, null);
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return table != null ? table.entrySet().iterator() : new InlineIterator();
+                }
+
+                @Override
+                public int size() {
+                    return XMLAttributeMap.this.size();
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    private int indexOf(Object key) {
+        for (int i = 0; i < size * 2; i += 2) {
+            if (Objects.equals(pairs[i], key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String valueAt(int index) {
+        CharSequence value = pairs[index + 1];
+        return value != null ? value.toString() : null;
+    }
+
+    private void removeAt(int index) {
+        System.arraycopy(pairs, index + 2, pairs, index, size * 2 - index - 2);
+        size--;
+        pairs[size * 2] = null;
+        pairs[size * 2 + 1] = null;
+        modCount++;
+    }
+
+    private final class InlineIterator implements Iterator<Map.Entry<String, String>> {
+        private int next;
+        private int last = -1;
+        private int expectedModCount = modCount;
+
+        @Override
+        public boolean hasNext() {
+            return next < size * 2;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (next >= size * 2) {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            next += 2;
+            return new InlineEntry(last);
+        }
+
+        @Override
+        public void remove() {
+            if (last < 0) {
+                throw new IllegalStateException();
+            }
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            removeAt(last);
+            next = last;
+            last = -1;
+            expectedModCount = modCount;
+        }
+    }
+
+    private final class InlineEntry implements Map.Entry<String, String> {
+        private final int index;
+
+        InlineEntry(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public String getKey() {
+            return (String) pairs[index];
+        }
+
+        @Override
+        public String getValue() {
+            return valueAt(index);
+        }
+
+        @Override
+        public String setValue(String value) {
+            String previous = valueAt(index);
+            pairs[index + 1] = value;
+            return previous;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+            return Objects.equals(getKey(), entry.getKey()) && Objects.equals(getValue(), entry.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(getKey()) ^ Objects.hashCode(getValue());
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+}
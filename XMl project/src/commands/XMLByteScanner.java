@@ -0,0 +1,60 @@
+package commands;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Търсене на байт в буфер по 8 байта наведнъж (SWAR - SIMD within a
+ * register). Вместо да се чете и сравнява всеки байт, се прочита цяла
+ * дума с getLong() и с няколко аритметични операции се проверява дали
+ * някой от осемте байта е търсеният. Побайтово се проверяват само
+ * последните по-малко от 8 байта.
+ *
+ * При подредба BIG_ENDIAN (подразбиращата се) първият байт в паметта е
+ * най-старшият в думата, а при LITTLE_ENDIAN - най-младшият.
+ */
+final class XMLByteScanner {
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long ONES = 0x0101010101010101L;
+
+    private XMLByteScanner() {
+    }
+
+    /**
+     * Намира първата позиция в [from, to), на която стои байтът c.
+     *
+     * @param buf буферът
+     * @param c търсеният байт (0-255)
+     * @param from началото на търсенето
+     * @param to краят на търсенето (изключително)
+     * @return позицията или -1, ако байтът не се среща
+     */
+    static int indexOf(ByteBuffer buf, int c, int from, int to) {
+        long pattern = ONES * c;
+        boolean bigEndian = buf.order() == ByteOrder.BIG_ENDIAN;
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            long match = zeroBytes(buf.getLong(i) ^ pattern);
+            if (match != 0) {
+                int bit = bigEndian ? Long.numberOfLeadingZeros(match) : Long.numberOfTrailingZeros(match);
+                return i + (bit >>> 3);
+            }
+        }
+        for (; i < to; i++) {
+            if ((buf.get(i) & 0xFF) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Връща дума, в която най-старшият бит на всеки байт е 1 точно когато
+     * съответният байт на word е 0. Събирането е в рамките на 7 бита, така
+     * че няма пренос между байтовете и няма фалшиви съвпадения.
+     */
+    private static long zeroBytes(long word) {
+        long t = (word & LOW_BITS) + LOW_BITS;
+        return ~(t | word | LOW_BITS);
+    }
+}
@@ -0,0 +1,176 @@
+package commands;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Преизползваем изглед (CharSequence) върху UTF-8 байтове, без да се създава String.
+ * XMLEventCursor връща такива изгледи за имена, стойности на атрибути и текст;
+ * съдържанието им е валидно само до следващото извикване на next().
+ *
+ * Ако байтовете са само ASCII, символите се четат директно от тях. Иначе
+ * при първия достъп се декодират веднъж във вътрешен масив, който се
+ * преизползва между събитията. Единствено toString() и subSequence()
+ * създават нов обект.
+ *
+ * Пример:
+ * <pre>
+ * CharSequence name = cursor.getNameChars();
+ * if (XMLCharSequence.contentEquals(name, "book")) { ... }
+ * String copy = name.toString(); // само ако стойността трябва да се запази
+ * </pre>
+ */
+public final class XMLCharSequence implements CharSequence {
+    private static final int UNKNOWN = 0;
+    private static final int ASCII = 1;
+    private static final int DECODED = 2;
+
+    private ByteBuffer buf;
+    private byte[] array;
+    private int start;
+    private int end;
+    private int state;
+    private char[] chars = new char[64];
+    private int charCount;
+
+    /**
+     * Насочва изгледа към байтовете [start, end) на буфер.
+     */
+    void set(ByteBuffer buf, int start, int end) {
+        this.buf = buf;
+        this.array = null;
+        this.start = start;
+        this.end = end;
+        this.state = UNKNOWN;
+    }
+
+    /**
+     * Насочва изгледа към байтовете [start, end) на масив.
+     */
+    void set(byte[] array, int start, int end) {
+        this.buf = null;
+        this.array = array;
+        this.start = start;
+        this.end = end;
+        this.state = UNKNOWN;
+    }
+
+    @Override
+    public int length() {
+        prepare();
+        return state == ASCII ? end - start : charCount;
+    }
+
+    @Override
+    public char charAt(int index) {
+        prepare();
+        if (state == ASCII) {
+            if (index < 0 || index >= end - start) {
+                throw new IndexOutOfBoundsException("index " + index + ", length " + (end - start));
+            }
+            return (char) byteAt(start + index);
+        }
+        if (index < 0 || index >= charCount) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + charCount);
+        }
+        return chars[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+        return toString().substring(from, to);
+    }
+
+    @Override
+    public String toString() {
+        if (array != null) {
+            return new String(array, start, end - start, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[end - start];
+        buf.get(start, bytes, 0, bytes.length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Сравнява съдържанието на две поредици от символи, без да създава String.
+     *
+     * @param sequence първата поредица
+     * @param text втората поредица
+     * @return true ако съдържат едни и същи символи
+     */
+    public static boolean contentEquals(CharSequence sequence, CharSequence text) {
+        int length = sequence.length();
+        if (length != text.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (sequence.charAt(i) != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int byteAt(int i) {
+        return (array != null ? array[i] : buf.get(i)) & 0xFF;
+    }
+
+    /**
+     * При първия достъп проверява дали байтовете са ASCII и, ако не са,
+     * ги декодира от UTF-8 в преизползвания масив chars.
+     */
+    private void prepare() {
+        if (state != UNKNOWN) {
+            return;
+        }
+        int i = start;
+        while (i < end && byteAt(i) < 0x80) {
+            i++;
+        }
+        if (i == end) {
+            state = ASCII;
+            return;
+        }
+        if (chars.length < end - start) {
+            chars = new char[Math.max(end - start, chars.length * 2)];
+        }
+        int n = 0;
+        for (int k = start; k < i; k++) {
+            chars[n++] = (char) byteAt(k);
+        }
+        while (i < end) {
+            int b = byteAt(i++);
+            int codePoint;
+            int extra;
+            if (b < 0x80) {
+                codePoint = b;
+                extra = 0;
+            } else if (b >= 0xF0) {
+                codePoint = b & 0x07;
+                extra = 3;
+            } else if (b >= 0xE0) {
+                codePoint = b & 0x0F;
+                extra = 2;
+            } else if (b >= 0xC0) {
+                codePoint = b & 0x1F;
+                extra = 1;
+            } else {
+                chars[n++] = '\uFFFD';
+                continue;
+            }
+            for (; extra > 0 && i < end && (byteAt(i) & 0xC0) == 0x80; extra--) {
+                codePoint = (codePoint << 6) | (byteAt(i++) & 0x3F);
+            }
+            if (extra > 0) {
+                chars[n++] = '\uFFFD';
+            } else if (Character.isBmpCodePoint(codePoint)) {
+                chars[n++] = (char) codePoint;
+            } else {
+                chars[n++] = Character.highSurrogate(codePoint);
+                chars[n++] = Character.lowSurrogate(codePoint);
+            }
+        }
+        charCount = n;
+        state = DECODED;
+    }
+}
@@ -0,0 +1,199 @@
+package commands;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Списъкът с децата на XMLElement. Пази елементите в масив като ArrayList,
+ * а при много деца - и индекс от името на тага към децата с този таг.
+ *
+ * Индексът се създава при първото търсене по таг, ако децата са поне
+ * TAG_INDEX_THRESHOLD, и след това се поддържа при добавяне в края и при
+ * премахване. Така getChildrenByTag(), set и delete по таг обхождат само
+ * съвпаденията, а не всички деца. Вмъкване в средата и set() изтриват
+ * индекса; той се създава отново при следващото търсене.
+ *
+ * Индексът съдържа самите елементи в реда им в списъка, а не позициите
+ * им, защото позициите се изместват при всяко премахване.
+ *
+ * Всяка промяна на списъка прави невалидна номерацията на дървото в реда
+ * на документа (XMLDocumentOrder).
+ */
+final class XMLChildList extends AbstractList<XMLElement> implements RandomAccess {
+    static final int TAG_INDEX_THRESHOLD = 64;
+    private static final XMLElement[] EMPTY = new XMLElement[0];
+    private static final int INITIAL_CAPACITY = 4;
+
+    private final XMLElement owner;
+    private XMLElement[] elements = EMPTY;
+    private int size;
+    private Map<String, List<XMLElement>> tagIndex;
+
+    /**
+     * @param owner елементът, чиито деца са в списъка
+     */
+    XMLChildList(XMLElement owner) {
+        this.owner = owner;
+    }
+
+    @Override
+    public XMLElement get(int index) {
+        checkIndex(index, size);
+        return elements[index];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public XMLElement set(int index, XMLElement element) {
+        checkIndex(index, size);
+        XMLElement previous = elements[index];
+        elements[index] = element;
+        tagIndex = null;
+        owner.invalidateOrder();
+        return previous;
+    }
+
+    @Override
+    public void add(int index, XMLElement element) {
+        checkIndex(index, size + 1);
+        if (size == elements.length) {
+            elements = Arrays.copyOf(elements, Math.max(INITIAL_CAPACITY, size * 2));
+        }
+        System.arraycopy(elements, index, elements, index + 1, size - index);
+        elements[index] = element;
+        size++;
+        modCount++;
+        owner.invalidateOrder();
+        if (tagIndex != null) {
+            if (index == size - 1) {
+                tagIndex.computeIfAbsent(element.getTag(), tag -> new ArrayList<>()).add(element);
+            } else {
+                tagIndex = null;
+            }
+        }
+    }
+
+    @Override
+    public XMLElement remove(int index) {
+        checkIndex(index, size);
+        XMLElement removed = elements[index];
+        System.arraycopy(elements, index + 1, elements, index, size - index - 1);
+        elements[--size] = null;
+        modCount++;
+        owner.invalidateOrder();
+        if (tagIndex != null) {
+            List<XMLElement> matches = tagIndex.get(removed.getTag());
+            for (int i = 0; i < matches.size(); i++) {
+                if (matches.get(i) == removed) {
+                    matches.remove(i);
+                    break;
+                }
+            }
+            if (matches.isEmpty()) {
+                tagIndex.remove(removed.getTag());
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(elements, 0, size, null);
+        size = 0;
+        tagIndex = null;
+        modCount++;
+        owner.invalidateOrder();
+    }
+
+    /**
+     * @param symbol каноничното име на тага
+     * @return нов списък с децата с този таг в реда им в списъка
+     */
+    List<XMLElement> byTag(String symbol) {
+        if (useTagIndex()) {
+            return new ArrayList<>(tagIndex.getOrDefault(symbol, Collections.emptyList()));
+        }
+        List<XMLElement> result = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            if (elements[i].getTag() == symbol) {
+                result.add(elements[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param symbol каноничното име на тага
+     * @return първото дете с този таг или null
+     */
+    XMLElement firstByTag(String symbol) {
+        if (useTagIndex()) {
+            List<XMLElement> matches = tagIndex.get(symbol);
+            return matches == null ? null : matches.get(0);
+        }
+        for (int i = 0; i < size; i++) {
+            if (elements[i].getTag() == symbol) {
+                return elements[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Премахва всички деца с дадения таг с едно преместване на масива.
+     *
+     * @param symbol каноничното име на тага
+     * @return премахнатите деца в реда им в списъка
+     */
+    List<XMLElement> removeByTag(String symbol) {
+        if (useTagIndex() && !tagIndex.containsKey(symbol)) {
+            return Collections.emptyList();
+        }
+        List<XMLElement> removed = new ArrayList<>();
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (elements[i].getTag() == symbol) {
+                removed.add(elements[i]);
+            } else {
+                elements[kept++] = elements[i];
+            }
+        }
+        if (removed.isEmpty()) {
+            return removed;
+        }
+        Arrays.fill(elements, kept, size, null);
+        size = kept;
+        modCount++;
+        owner.invalidateOrder();
+        if (tagIndex != null) {
+            tagIndex.remove(symbol);
+        }
+        return removed;
+    }
+
+    private boolean useTagIndex() {
+        if (tagIndex == null && size >= TAG_INDEX_THRESHOLD) {
+            tagIndex = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                tagIndex.computeIfAbsent(elements[i].getTag(), tag -> new ArrayList<>()).add(elements[i]);
+            }
+        }
+        return tagIndex != null;
+    }
+
+    private static void checkIndex(int index, int length) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + length);
+        }
+    }
+}
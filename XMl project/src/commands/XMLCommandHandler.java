@@ -1,8 +1,14 @@
 package commands;
 
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.FileWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Обработчик на команди за работа с XML, предоставящ набор от методи за манипулация и заявяване на XML документи.
@@ -25,9 +31,14 @@ import java.util.*;
  */
 
 public class XMLCommandHandler {
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
     private XMLParser parser;
     private XMLElement currentRoot;
+    private XMLDocument currentDocument;
     private String lastSavedFilename;
+    private ParseMode parseMode = ParseMode.SINGLE_PASS;
+    private final XMLDocumentArena arena = new XMLDocumentArena();
 
     /**
      * Създава нов XMLCommandHandler с подразбиращ се XMLParser.
@@ -48,10 +59,68 @@ public class XMLCommandHandler {
      * </pre>
      */
     public void open(String filename) throws IOException {
-        currentRoot = parser.parseXML(filename);
+        open(filename, parseMode);
+    }
+
+    /**
+     * Отваря и анализира XML файл с конкретен режим на парсване.
+     * В режимите compact и off-heap масивите на документа се вземат от
+     * арената на handler-а и се използват отново при следващите отваряния.
+     *
+     * @param filename пътят до XML файла, който трябва да се отвори
+     * @param mode режимът на парсване, например ParseMode.LEGACY за рекурсивния парсър
+     * @throws IOException ако файлът не може да бъде прочетен или анализиран
+     *
+     * Пример:
+     * <pre>
+     * handler.open("old.xml", ParseMode.LEGACY);
+     * </pre>
+     */
+    public void open(String filename, ParseMode mode) throws IOException {
+        currentDocument = parser.parseDocument(filename, mode, arena);
+        currentRoot = currentDocument.getRoot();
         lastSavedFilename = filename;
         System.out.println("File opened successfully.");
     }
+
+    /**
+     * Отваря XML файл, като парсва само елементите по зададените пътища,
+     * заедно с предците им. Останалите елементи не се зареждат, затова такъв
+     * документ записва само избраната част и не трябва да замени файла, от
+     * който е прочетен: save не е разрешен, докато не се зададе ново име
+     * със saveas.
+     *
+     * @param filename пътят до XML файла, който трябва да се отвори
+     * @param paths пътищата на нужните елементи, например "book/title"
+     * @throws IOException ако файлът не може да бъде прочетен или анализиран
+     *
+     * Пример:
+     * <pre>
+     * handler.open("books.xml", List.of("book/title"));
+     * </pre>
+     */
+    public void open(String filename, List<String> paths) throws IOException {
+        currentDocument = new ProjectionXMLParser(paths).parseDocument(filename);
+        currentRoot = currentDocument.getRoot();
+        lastSavedFilename = null;
+        System.out.println("File opened successfully.");
+    }
+
+    /**
+     * Задава режима на парсване, който open(filename) използва по подразбиране.
+     * @param mode режимът на парсване
+     */
+    public void setParseMode(ParseMode mode) {
+        this.parseMode = mode;
+    }
+
+    /**
+     * Връща режима на парсване по подразбиране.
+     * @return текущият режим на парсване
+     */
+    public ParseMode getParseMode() {
+        return parseMode;
+    }
     /**
      * Отпечатва текущата структура на XML във форматиран вид.
      * Ако не е отворен файл, се показва подходящо съобщение.
@@ -70,7 +139,7 @@ public class XMLCommandHandler {
             System.out.println("No file is currently open.");
             return;
         }
-        printElement(currentRoot, 0);
+        printElement(currentDocument.snapshot(), 0);
     }
     /**
      * Избира и отпечатва стойността на определен атрибут за даден елемент по ID.
@@ -85,7 +154,7 @@ public class XMLCommandHandler {
      * </pre>
      */
     public void select(String id, String key) {
-        XMLElement element = findElementById(currentRoot, id);
+        XMLElement element = findElementById(id);
         if (element == null) {
             System.out.println("Element with id '" + id + "' not found.");
             return;
@@ -114,7 +183,7 @@ public class XMLCommandHandler {
      * </pre>
      */
     public void set(String id, String key, String value) {
-        XMLElement element = findElementById(currentRoot, id);
+        XMLElement element = findElementById(id);
         if (element == null) {
             System.out.println("Element with id '" + id + "' not found.");
             return;
@@ -132,36 +201,28 @@ public class XMLCommandHandler {
         }
         
         if (key.startsWith("*")) {
-            String tagName = key.substring(1); // Remove the *
+            String tagName = key.substring(1).intern(); // Remove the *
             
-            boolean childUpdated = false;
-            for (XMLElement child : element.getChildren()) {
-                if (child.getTag().equals(tagName)) {
-                    child.setTextContent(value);
-                    System.out.println("Updated existing child element <" + tagName + "> with new text content.");
-                    childUpdated = true;
-                    break;
-                }
-            }
-            
-            if (!childUpdated) {
-                XMLElement newChild = new XMLElement(tagName);
+            XMLElement existing = element.getFirstChildByTag(tagName);
+            if (existing != null) {
+                existing.setTextContent(value);
+                System.out.println("Updated existing child element <" + tagName + "> with new text content.");
+            } else {
+                XMLElement newChild = currentDocument.createElement(tagName);
                 newChild.setTextContent(value);
                 newChild.setParent(element);
                 element.addChild(newChild);
+                currentDocument.register(newChild);
                 System.out.println("Created new child element <" + tagName + "> with text content.");
             }
             return;
         }
         
-        boolean isChildElementTag = false;
-        for (XMLElement child : element.getChildren()) {
-            if (child.getTag().equals(key)) {
-                isChildElementTag = true;
-                child.setTextContent(value);
-                System.out.println("Child element's text content updated successfully.");
-                return;
-            }
+        XMLElement childElement = element.getFirstChildByTag(key);
+        if (childElement != null) {
+            childElement.setTextContent(value);
+            System.out.println("Child element's text content updated successfully.");
+            return;
         }
         
         element.setAttribute(key, value);
@@ -174,7 +235,7 @@ public class XMLCommandHandler {
      * @param id ID на родителския елемент
      */
     public void children(String id) {
-        XMLElement element = findElementById(currentRoot, id);
+        XMLElement element = findElementById(id);
         if (element == null) {
             System.out.println("Element with id '" + id + "' not found.");
             return;
@@ -247,7 +308,7 @@ public class XMLCommandHandler {
      * </pre>
      */
     public void child(String id, int n) {
-        XMLElement element = findElementById(currentRoot, id);
+        XMLElement element = findElementById(id);
         if (element == null) {
             System.out.println("Element with id '" + id + "' not found.");
             return;
@@ -274,7 +335,7 @@ public class XMLCommandHandler {
      * </pre>
      */
     public void text(String id) {
-        XMLElement element = findElementById(currentRoot, id);
+        XMLElement element = findElementById(id);
         if (element == null) {
             System.out.println("Element with id '" + id + "' not found.");
             return;
@@ -295,7 +356,7 @@ public class XMLCommandHandler {
      * @param key Име на атрибута или таг на дъщерния елемент за изтриване
      */
     public void delete(String id, String key) {
-        XMLElement element = findElementById(currentRoot, id);
+        XMLElement element = findElementById(id);
         if (element == null) {
             System.out.println("Element with id '" + id + "' not found.");
             return;
@@ -336,7 +397,7 @@ public class XMLCommandHandler {
      */
     private boolean deleteAttribute(XMLElement element, String key) {
         if (element.getAttributes().containsKey(key)) {
-            element.getAttributes().remove(key);
+            element.removeAttribute(key);
             System.out.println("Attribute '" + key + "' deleted successfully.");
             return true;
         }
@@ -347,18 +408,12 @@ public class XMLCommandHandler {
      * Опитва се да изтрие дъщерни елементи с посочения таг.
      */
     private void deleteChildElements(XMLElement element, String tag) {
-        List<XMLElement> children = element.getChildren();
-        boolean removed = false;
-        Iterator<XMLElement> it = children.iterator();
-        while (it.hasNext()) {
-            XMLElement child = it.next();
-            if (child.getTag().equals(tag)) {
-                it.remove();
-                removed = true;
-            }
+        List<XMLElement> removed = element.removeChildrenByTag(tag);
+        for (XMLElement child : removed) {
+            currentDocument.unregister(child);
         }
         
-        if (removed) {
+        if (!removed.isEmpty()) {
             System.out.println("Child element(s) with tag '" + tag + "' deleted successfully.");
         } else {
             System.out.println("No attribute or child element with name '" + tag + "' found.");
@@ -378,17 +433,18 @@ public class XMLCommandHandler {
      * </pre>
      */
     public void newchild(String id, String tagName) {
-        XMLElement parent = findElementById(currentRoot, id);
+        XMLElement parent = findElementById(id);
         if (parent == null) {
             System.out.println("Element with id '" + id + "' not found.");
             return;
         }
 
         String newTag = (tagName != null && !tagName.isEmpty()) ? tagName : "new_element";
-        XMLElement newChild = new XMLElement(newTag);
+        XMLElement newChild = currentDocument.createElement(newTag);
         
         newChild.setParent(parent);
         parent.addChild(newChild);
+        currentDocument.register(newChild);
         System.out.println("New child <" + newTag + "> added with id: " + newChild.getAttribute("id"));
     }
 
@@ -419,33 +475,41 @@ public class XMLCommandHandler {
             System.out.println("No file is currently open.");
             return;
         }
+        XMLElement root = currentDocument.snapshot();
         expression = expression.replace(" ", "");
         if (expression.contains("(@")) {
-            handleAttributeQuery(expression);
+            handleAttributeQuery(root, expression);
         } else if (expression.contains("(") && expression.contains("=") && expression.contains(")")) {
-            handleFilterQuery(expression);
+            handleFilterQuery(root, expression);
         } else {
-            handlePathAndIndexQuery(expression);
+            handlePathAndIndexQuery(root, expression);
         }
     }
 
+    /**
+     * Имената на таговете са канонични, затова търсеното име се канонизира
+     * веднъж и елементите се сравняват с ==. Обхождането е без рекурсия и
+     * събира резултата в един списък.
+     */
     private List<XMLElement> findElementsByTag(XMLElement root, String tag) {
         List<XMLElement> result = new ArrayList<>();
-        if (root.getTag().equals(tag)) {
-            result.add(root);
-        }
-        for (XMLElement child : root.getChildren()) {
-            result.addAll(findElementsByTag(child, tag));
+        String symbol = tag.intern();
+        Iterator<XMLElement> it = root.preOrderIterator();
+        while (it.hasNext()) {
+            XMLElement element = it.next();
+            if (element.getTag() == symbol) {
+                result.add(element);
+            }
         }
         return result;
     }
 
-    private void handleAttributeQuery(String expression) {
+    private void handleAttributeQuery(XMLElement root, String expression) {
         String[] parts = expression.split("\\(@");
         String tag = parts[0];
         String attr = parts[1].replace(")", "");
         
-        List<XMLElement> elements = findElementsByTag(currentRoot, tag);
+        List<XMLElement> elements = findElementsByTag(root, tag);
         if (elements.isEmpty()) {
             System.out.println("No elements found with tag: " + tag);
             return;
@@ -465,7 +529,7 @@ public class XMLCommandHandler {
         }
     }
 
-    private void handleFilterQuery(String expression) {
+    private void handleFilterQuery(XMLElement root, String expression) {
         String beforeParen = expression.substring(0, expression.indexOf('('));
         String insideParen = expression.substring(expression.indexOf('(') + 1, expression.indexOf(')'));
         String afterParen = expression.substring(expression.indexOf(')') + 1);
@@ -473,13 +537,14 @@ public class XMLCommandHandler {
         String filterKey = filterParts[0];
         String filterValue = filterParts[1].replaceAll("\"", "");
         
-        List<XMLElement> elements = findElementsByTag(currentRoot, beforeParen);
+        List<XMLElement> elements = findElementsByTag(root, beforeParen);
         if (elements.isEmpty()) {
             System.out.println("No elements found with tag: " + beforeParen);
             return;
         }
         
         List<XMLElement> filtered = new ArrayList<>();
+        String filterTag = filterKey.intern();
         for (XMLElement el : elements) {
             String attrValue = el.getAttribute(filterKey);
             if (filterValue.equals(attrValue)) {
@@ -488,7 +553,7 @@ public class XMLCommandHandler {
             }
             
             for (XMLElement child : el.getChildren()) {
-                if (child.getTag().equals(filterKey) && 
+                if (child.getTag() == filterTag && 
                     filterValue.equals(child.getTextContent())) {
                     filtered.add(el);
                     break;
@@ -533,15 +598,21 @@ public class XMLCommandHandler {
         }
     }
 
-    private void handlePathAndIndexQuery(String expression) {
+    /**
+     * Изпълнява път от тагове с незадължителен индекс. Междинните резултати
+     * се пазят в реда на документа и без повторения: контекст, вложен в
+     * предходния, се пропуска, защото съвпаденията му вече са намерени.
+     */
+    private void handlePathAndIndexQuery(XMLElement root, String expression) {
         String[] pathParts = expression.split("/");
         List<XMLElement> current = new ArrayList<>();
-        current.add(currentRoot);
+        current.add(root);
         for (String part : pathParts) {
             List<XMLElement> next = new ArrayList<>();
             String tag = part;
             int idx = -1;
             if (part.contains("[")) {
+                tag = part.substring(0, part.indexOf('['));
                 String idxStr = part.substring(part.indexOf('[') + 1, part.indexOf(']'));
                 try {
                     idx = Integer.parseInt(idxStr);
@@ -550,7 +621,12 @@ public class XMLCommandHandler {
                     return;
                 }
             }
+            XMLElement previous = null;
             for (XMLElement el : current) {
+                if (idx < 0 && previous != null && previous.isAncestorOf(el)) {
+                    // Всички съвпадения в el вече са добавени от previous.
+                    continue;
+                }
                 List<XMLElement> children = findElementsByTag(el, tag);
                 if (idx >= 0) {
                     if (idx < children.size()) {
@@ -558,8 +634,12 @@ public class XMLCommandHandler {
                     }
                 } else {
                     next.addAll(children);
+                    previous = el;
                 }
             }
+            if (idx >= 0) {
+                XMLDocumentOrder.sortDistinct(next);
+            }
             current = next;
         }
         for (XMLElement el : current) {
@@ -572,29 +652,41 @@ public class XMLCommandHandler {
         }
     }
 
-    private XMLElement findElementById(XMLElement root, String id) {
-        if (root == null || id == null) {
-            return null;
-        }
-
-        if (id.equals(root.getAttribute("id"))) {
-            return root;
-        }
+    /**
+     * Търси елемент по ID в индекса на текущия документ, без да обхожда дървото.
+     */
+    private XMLElement findElementById(String id) {
+        return currentDocument == null ? null : currentDocument.findById(id);
+    }
 
-        for (XMLElement child : root.getChildren()) {
-            XMLElement found = findElementById(child, id);
-            if (found != null) {
-                return found;
+    /**
+     * Отпечатва елемента и поддървото му. Вместо рекурсия се пази стек с
+     * отворените елементи и итераторите по децата им, така че дълбочината
+     * на документа не е ограничена от стека на нишката.
+     */
+    private void printElement(XMLElement root, int indent) {
+        Deque<XMLElement> open = new ArrayDeque<>();
+        Deque<Iterator<XMLElement>> pending = new ArrayDeque<>();
+        printStartTag(root, indent);
+        open.push(root);
+        pending.push(root.getChildren().iterator());
+        while (!pending.isEmpty()) {
+            Iterator<XMLElement> children = pending.peek();
+            if (children.hasNext()) {
+                XMLElement child = children.next();
+                printStartTag(child, indent + pending.size());
+                open.push(child);
+                pending.push(child.getChildren().iterator());
+            } else {
+                pending.pop();
+                System.out.println("  ".repeat(indent + pending.size()) + "</" + open.pop().getTag() + ">");
             }
         }
-
-        return null;
     }
 
-    private void printElement(XMLElement element, int indent) {
+    private void printStartTag(XMLElement element, int indent) {
         String indentation = "  ".repeat(indent);
-        String tagName = element.getTag();
-        System.out.print(indentation + "<" + tagName);
+        System.out.print(indentation + "<" + element.getTag());
 
         for (Map.Entry<String, String> attr : element.getAttributes().entrySet()) {
             System.out.print(" " + attr.getKey() + "=\"" + attr.getValue() + "\"");
@@ -604,14 +696,13 @@ public class XMLCommandHandler {
         if (element.getTextContent() != null && !element.getTextContent().isEmpty()) {
             System.out.print(indentation + "  " + element.getTextContent() + "\n");
         }
-        for (XMLElement child : element.getChildren()) {
-            printElement(child, indent + 1);
-        }
-        System.out.println(indentation + "</" + tagName + ">");
     }
 
     /**
      * Запазва текущата XML структура във файл (вътрешен метод).
+     * Ако името завършва на .gz, файлът се компресира с gzip, докато се записва.
+     * Записва се snapshot() на документа, така че при PersistentXMLDocument
+     * файлът отговаря на един момент, дори ако междувременно има промени.
      *
      * @param filename пътят до файла, в който да се запази XML структурата
      * @throws IOException ако файлът не може да бъде записан
@@ -621,13 +712,21 @@ public class XMLCommandHandler {
             System.out.println("No file is currently open for saving.");
             return;
         }
-        try (FileWriter writer = new FileWriter(filename)) {
+        try (Writer writer = openWriter(filename)) {
             writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
-            saveElement(writer, currentRoot, 0);
+            saveElement(writer, currentDocument.snapshot(), 0);
             System.out.println("File saved successfully.");
         }
     }
 
+    private static Writer openWriter(String filename) throws IOException {
+        if (filename.toLowerCase().endsWith(".gz")) {
+            GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(filename), GZIP_BUFFER_SIZE);
+            return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), GZIP_BUFFER_SIZE);
+        }
+        return new FileWriter(filename, StandardCharsets.UTF_8);
+    }
+
     public void save() throws IOException {
         if (lastSavedFilename == null) {
             System.out.println("No previous filename. Use saveas <filename>.");
@@ -642,14 +741,43 @@ public class XMLCommandHandler {
     }
 
     /**
-     * Рекурсивно запазва XML елемент и неговите дъщерни елементи.
+     * Запазва XML елемент и неговите дъщерни елементи. Както printElement,
+     * използва явен стек вместо рекурсия.
      * 
-     * @param writer FileWriter за запис
-     * @param element елементът за запазване
+     * @param writer Writer за запис
+     * @param root елементът за запазване
      * @param indent ниво на отстъп
      * @throws IOException ако възникне грешка при запис
      */
-    private void saveElement(FileWriter writer, XMLElement element, int indent) throws IOException {
+    private void saveElement(Writer writer, XMLElement root, int indent) throws IOException {
+        Deque<XMLElement> open = new ArrayDeque<>();
+        Deque<Iterator<XMLElement>> pending = new ArrayDeque<>();
+        if (saveStartTag(writer, root, indent)) {
+            open.push(root);
+            pending.push(root.getChildren().iterator());
+        }
+        while (!pending.isEmpty()) {
+            Iterator<XMLElement> children = pending.peek();
+            if (children.hasNext()) {
+                XMLElement child = children.next();
+                if (saveStartTag(writer, child, indent + pending.size())) {
+                    open.push(child);
+                    pending.push(child.getChildren().iterator());
+                }
+            } else {
+                pending.pop();
+                writer.write("  ".repeat(indent + pending.size()) + "</" + open.pop().getTag() + ">\n");
+            }
+        }
+    }
+
+    /**
+     * Записва елемент с текст или без деца изцяло, а на останалите - само
+     * отварящия таг.
+     *
+     * @return true, ако децата и затварящият таг още предстоят
+     */
+    private boolean saveStartTag(Writer writer, XMLElement element, int indent) throws IOException {
         String indentation = "  ".repeat(indent);
         writer.write(indentation + "<" + element.getTag());
 
@@ -659,14 +787,12 @@ public class XMLCommandHandler {
 
         if (element.getTextContent() != null && !element.getTextContent().isEmpty()) {
             writer.write(">" + element.getTextContent() + "</" + element.getTag() + ">\n");
+            return false;
         } else if (element.getChildren().isEmpty()) {
             writer.write("></"+element.getTag()+">\n");
-        } else {
-            writer.write(">\n");
-            for (XMLElement child : element.getChildren()) {
-                saveElement(writer, child, indent + 1);
-            }
-            writer.write(indentation + "</" + element.getTag() + ">\n");
+            return false;
         }
+        writer.write(">\n");
+        return true;
     }
 }
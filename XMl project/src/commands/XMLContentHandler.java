@@ -0,0 +1,48 @@
+package commands;
+
+/**
+ * Интерфейс за обработка на XML чрез обратни извиквания (push/SAX стил).
+ * XMLParser извиква методите в реда, в който конструкциите се срещат във
+ * файла, без да създава XMLElement обекти.
+ *
+ * Подадените CharSequence стойности са изгледи върху входа, които се
+ * преизползват: валидни са само по време на извикването. Ако стойността
+ * трябва да се запази, използвайте toString().
+ *
+ * Пример за употреба:
+ * <pre>
+ * parser.parseXML("big.xml", new XMLContentHandler() {
+ *     public void startElement(CharSequence name) { count++; }
+ *     public void attribute(CharSequence name, CharSequence value) { }
+ *     public void characters(CharSequence text) { }
+ *     public void endElement(CharSequence name) { }
+ * });
+ * </pre>
+ */
+public interface XMLContentHandler {
+    /**
+     * Извиква се при отварящ таг; следват извиквания на attribute() за атрибутите му.
+     * @param name името на елемента
+     */
+    void startElement(CharSequence name);
+
+    /**
+     * Извиква се за всеки атрибут на последно отворения елемент.
+     * @param name името на атрибута
+     * @param value стойността на атрибута, без кавичките
+     */
+    void attribute(CharSequence name, CharSequence value);
+
+    /**
+     * Извиква се за всеки непрекъснат текст или CDATA секция в елемент.
+     * Празните символи между елементите също се подават.
+     * @param text текстът
+     */
+    void characters(CharSequence text);
+
+    /**
+     * Извиква се при затварящ таг (и веднага след самозатварящ се таг).
+     * @param name името на елемента
+     */
+    void endElement(CharSequence name);
+}
@@ -0,0 +1,182 @@
+package commands;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Отворен XML документ: коренният елемент заедно с индекс от ID към елемент.
+ * Парсерите попълват индекса, докато създават възлите, така че търсенето по
+ * ID след open е O(1), без отделно обхождане на дървото.
+ *
+ * Както при обхождането, при повтарящи се ID се връща първият елемент в реда
+ * на документа. Индексът се проверява при всяко търсене: ако записът липсва
+ * или ID-то на елемента вече е друго, дървото се обхожда и резултатът се
+ * запомня. Затова документи без индекс (например при LEGACY и LAZY) също
+ * работят и индексът се изгражда постепенно.
+ *
+ * Индекс от парсера е пълен: ако ID липсва в него, търсенето връща null
+ * веднага. Добавянето и изтриването на елементи трябва да минава през
+ * register() и unregister(), за да остане индексът верен.
+ *
+ * Всеки документ има собствен IDManager, от който идват автоматичните ID
+ * на елементите му - и от парсера, и от createElement().
+ *
+ * Пример за употреба:
+ * <pre>
+ * XMLDocument document = parser.parseDocument("data.xml", ParseMode.SINGLE_PASS);
+ * XMLElement element = document.findById("auto_42");
+ * </pre>
+ */
+public class XMLDocument {
+    private final XMLElement root;
+    private final Map<String, XMLElement> idIndex;
+    private final IDManager ids;
+    private boolean complete;
+
+    /**
+     * Създава документ без индекс; той се попълва при търсене. Новите
+     * автоматични ID продължават след най-голямото в дървото.
+     *
+     * @param root коренният елемент
+     */
+    public XMLDocument(XMLElement root) {
+        this(root, IDManager.continuing(root));
+    }
+
+    /**
+     * Създава документ без индекс с генератора, от който парсерът е взел ID-тата.
+     *
+     * @param root коренният елемент
+     * @param ids генераторът на документа
+     */
+    XMLDocument(XMLElement root, IDManager ids) {
+        this.root = root;
+        this.idIndex = new HashMap<>();
+        this.ids = ids;
+    }
+
+    /**
+     * Създава документ с индекс, попълнен от парсера.
+     *
+     * @param root коренният елемент
+     * @param idIndex ID към първия елемент с това ID в реда на документа
+     * @param ids генераторът на документа
+     */
+    XMLDocument(XMLElement root, Map<String, XMLElement> idIndex, IDManager ids) {
+        this.root = root;
+        this.idIndex = idIndex;
+        this.ids = ids;
+        this.complete = true;
+    }
+
+    /**
+     * Връща коренния елемент на документа.
+     * @return коренният елемент
+     */
+    public XMLElement getRoot() {
+        return root;
+    }
+
+    /**
+     * Връща генератора на автоматичните ID на документа.
+     * @return генераторът
+     */
+    public IDManager getIdManager() {
+        return ids;
+    }
+
+    /**
+     * Създава нов елемент с автоматично ID от генератора на документа.
+     * Елементът още не е в дървото; може да се вика от няколко нишки.
+     *
+     * @param tag името на тага
+     * @return новият елемент
+     */
+    public XMLElement createElement(String tag) {
+        return new XMLElement(tag.intern(), ids.next());
+    }
+
+    /**
+     * Връща корена, от който да се чете документът към този момент - за
+     * отпечатване, заявки и запис. Обикновеният документ връща самия корен;
+     * PersistentXMLDocument връща неизменима версия, която по-късните
+     * промени не засягат.
+     *
+     * @return коренът на текущото състояние
+     */
+    public XMLElement snapshot() {
+        return root;
+    }
+
+    /**
+     * Намира първия елемент в реда на документа, чийто атрибут "id" е равен на id.
+     *
+     * @param id търсеното ID
+     * @return елементът или null, ако няма такъв
+     */
+    public XMLElement findById(String id) {
+        if (id == null) {
+            return null;
+        }
+        XMLElement element = idIndex.get(id);
+        if (element != null && id.equals(element.getAttribute("id"))) {
+            return element;
+        }
+        if (element == null && complete) {
+            return null;
+        }
+        element = findInTree(root, id);
+        if (element != null) {
+            idIndex.put(id, element);
+        } else {
+            idIndex.remove(id);
+        }
+        return element;
+    }
+
+    /**
+     * Добавя в индекса нов елемент и наследниците му. Вече индексирани ID не
+     * се подменят, защото те принадлежат на по-ранни елементи. Елементите,
+     * създадени с new XMLElement(tag), получават автоматично ID от документа.
+     *
+     * @param element добавеният елемент
+     */
+    public void register(XMLElement element) {
+        Iterator<XMLElement> it = element.preOrderIterator();
+        while (it.hasNext()) {
+            XMLElement added = it.next();
+            if (added.hasDetachedId()) {
+                added.assignAutoId(ids.next());
+            }
+            idIndex.putIfAbsent(added.getAttribute("id"), added);
+        }
+    }
+
+    /**
+     * Премахва от индекса изтрит елемент и наследниците му. Ако по-късен
+     * елемент има същото ID, той се намира при следващото търсене.
+     *
+     * @param element изтритият елемент
+     */
+    public void unregister(XMLElement element) {
+        Iterator<XMLElement> it = element.preOrderIterator();
+        while (it.hasNext()) {
+            XMLElement removed = it.next();
+            if (idIndex.remove(removed.getAttribute("id"), removed)) {
+                complete = false;
+            }
+        }
+    }
+
+    private static XMLElement findInTree(XMLElement root, String id) {
+        Iterator<XMLElement> it = root.preOrderIterator();
+        while (it.hasNext()) {
+            XMLElement element = it.next();
+            if (id.equals(element.getAttribute("id"))) {
+                return element;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,56 @@
+package commands;
+
+/**
+ * Памет за компактните документи (COMPACT и OFF_HEAP), която се използва
+ * отново при всяко следващо отваряне. Вместо при всеки open да се заделят
+ * нови масиви за възлите, атрибутите и текста (и да се изхвърлят старите),
+ * арената пази хранилищата (XMLNodeStore) и ги изпразва с reset().
+ *
+ * Арената има две хранилища: едното е на последния отворен документ, а
+ * другото се попълва при следващото отваряне. Така неуспешно отваряне не
+ * поврежда документа, който остава отворен. Документът отпреди две
+ * отваряния вече не може да се използва - изгледите към него хвърлят
+ * IllegalStateException.
+ *
+ * Пример за употреба:
+ * <pre>
+ * XMLDocumentArena arena = new XMLDocumentArena();
+ * for (String file : files) {
+ *     XMLDocument document = parser.parseDocument(file, ParseMode.COMPACT, arena);
+ *     ...
+ * }
+ * </pre>
+ *
+ * Класът не е thread-safe.
+ */
+public final class XMLDocumentArena {
+    private XMLNodeStore current;
+    private XMLNodeStore spare;
+
+    /**
+     * Връща празно хранилище за нов документ: резервното, ако е от същия
+     * вид, или ново.
+     *
+     * @param offHeap true, ако хранилището трябва да е извън heap-а
+     * @return хранилището
+     */
+    XMLNodeStore acquire(boolean offHeap) {
+        if (spare == null || spare.isOffHeap() != offHeap) {
+            spare = new XMLNodeStore(offHeap);
+        } else {
+            spare.reset();
+        }
+        return spare;
+    }
+
+    /**
+     * Отбелязва, че документът в store е отворен успешно; хранилището на
+     * предишния документ става резервно.
+     *
+     * @param store хранилището, върнато от acquire()
+     */
+    void opened(XMLNodeStore store) {
+        spare = current;
+        current = store;
+    }
+}
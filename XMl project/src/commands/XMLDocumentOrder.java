@@ -0,0 +1,182 @@
+package commands;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Номерация на елементите на едно дърво в реда на документа. Всеки елемент
+ * получава интервал [start, end]: start е поредният му номер в pre-order,
+ * а end - най-големият номер в поддървото му. Тогава A е предшественик на
+ * B точно когато A.start &lt; B.start &lt;= A.end, а редът в документа е
+ * редът на start - и двете проверки са O(1).
+ *
+ * SinglePassXMLParser номерира елементите, докато ги създава. Всяка промяна
+ * в списъка с децата на елемент прави номерацията на дървото му невалидна;
+ * тя се изчислява отново (с едно обхождане) едва при следващата проверка,
+ * която има нужда от нея.
+ *
+ * Изгледите (CompactXMLElement, PersistentXMLElement) нямат собствени
+ * полета за номерацията и се сравняват чрез родителите си.
+ */
+final class XMLDocumentOrder {
+    private static final int INITIAL_DEPTH = 32;
+
+    /**
+     * Подрежда елементите в реда на документа.
+     */
+    static final Comparator<XMLElement> COMPARATOR = XMLDocumentOrder::compare;
+
+    private boolean valid;
+
+    void invalidate() {
+        valid = false;
+    }
+
+    /**
+     * Отбелязва, че номерацията обхваща цялото дърво и отговаря на него.
+     */
+    void complete() {
+        valid = true;
+    }
+
+    /**
+     * @return true, ако descendant е в поддървото на ancestor (и не е самият той)
+     */
+    static boolean isAncestor(XMLElement ancestor, XMLElement descendant) {
+        if (ancestor.isView() || descendant.isView()) {
+            for (XMLElement parent = descendant.getParent(); parent != null; parent = parent.getParent()) {
+                if (parent.equals(ancestor)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (!labeled(ancestor, descendant)) {
+            return false;
+        }
+        return ancestor.getOrderStart() < descendant.getOrderStart()
+                && descendant.getOrderStart() <= ancestor.getOrderEnd();
+    }
+
+    /**
+     * Сравнява два елемента от едно дърво по реда им в документа.
+     *
+     * @throws IllegalArgumentException ако елементите са от различни дървета
+     */
+    static int compare(XMLElement a, XMLElement b) {
+        if (a.equals(b)) {
+            return 0;
+        }
+        if (a.isView() || b.isView()) {
+            return compareByPath(a, b);
+        }
+        if (!labeled(a, b)) {
+            throw new IllegalArgumentException("Elements " + a.getId() + " and " + b.getId() + " are not in the same tree");
+        }
+        return Integer.compare(a.getOrderStart(), b.getOrderStart());
+    }
+
+    /**
+     * Подрежда списъка в реда на документа и премахва повторенията.
+     *
+     * @param elements елементи от едно дърво
+     */
+    static void sortDistinct(List<XMLElement> elements) {
+        elements.sort(COMPARATOR);
+        int kept = 0;
+        for (int i = 0; i < elements.size(); i++) {
+            if (kept == 0 || !elements.get(i).equals(elements.get(kept - 1))) {
+                elements.set(kept++, elements.get(i));
+            }
+        }
+        elements.subList(kept, elements.size()).clear();
+    }
+
+    /**
+     * Осигурява валидна номерация, в която са и двата елемента.
+     *
+     * @return false, ако елементите не са в едно и също дърво
+     */
+    private static boolean labeled(XMLElement a, XMLElement b) {
+        XMLDocumentOrder order = a.getOrder();
+        if (order != null && order.valid && b.getOrder() == order) {
+            return true;
+        }
+        XMLElement root = a;
+        while (root.getParent() != null) {
+            root = root.getParent();
+        }
+        order = root.getOrder();
+        if (order == null || !order.valid) {
+            order = label(root);
+        }
+        return a.getOrder() == order && b.getOrder() == order;
+    }
+
+    /**
+     * Номерира дървото с едно обхождане с явен стек.
+     */
+    private static XMLDocumentOrder label(XMLElement root) {
+        XMLDocumentOrder order = new XMLDocumentOrder();
+        XMLElement[] elements = new XMLElement[INITIAL_DEPTH];
+        List<?>[] children = new List<?>[INITIAL_DEPTH];
+        int[] next = new int[INITIAL_DEPTH];
+        int depth = 0;
+        int counter = 0;
+        root.setOrder(order, counter++);
+        elements[0] = root;
+        children[0] = root.getChildren();
+        depth = 1;
+        while (depth > 0) {
+            int top = depth - 1;
+            if (next[top] < children[top].size()) {
+                XMLElement child = (XMLElement) children[top].get(next[top]++);
+                child.setOrder(order, counter++);
+                if (depth == elements.length) {
+                    elements = Arrays.copyOf(elements, depth * 2);
+                    children = Arrays.copyOf(children, depth * 2);
+                    next = Arrays.copyOf(next, depth * 2);
+                }
+                elements[depth] = child;
+                children[depth] = child.getChildren();
+                next[depth] = 0;
+                depth++;
+            } else {
+                elements[top].setOrderEnd(counter - 1);
+                elements[top] = null;
+                children[top] = null;
+                depth--;
+            }
+        }
+        order.complete();
+        return order;
+    }
+
+    /**
+     * Сравнява изгледи чрез пътищата им от корена.
+     */
+    private static int compareByPath(XMLElement a, XMLElement b) {
+        List<XMLElement> pathA = a.getAncestors();
+        List<XMLElement> pathB = b.getAncestors();
+        pathA.add(0, a);
+        pathB.add(0, b);
+        int i = pathA.size() - 1;
+        int j = pathB.size() - 1;
+        if (!pathA.get(i).equals(pathB.get(j))) {
+            throw new IllegalArgumentException("Elements " + a.getId() + " and " + b.getId() + " are not in the same tree");
+        }
+        while (i > 0 && j > 0 && pathA.get(i - 1).equals(pathB.get(j - 1))) {
+            i--;
+            j--;
+        }
+        if (i == 0) {
+            return -1;
+        }
+        if (j == 0) {
+            return 1;
+        }
+        List<XMLElement> siblings = pathA.get(i).getChildren();
+        return Integer.compare(siblings.indexOf(pathA.get(i - 1)), siblings.indexOf(pathB.get(j - 1)));
+    }
+}
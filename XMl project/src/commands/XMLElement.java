@@ -1,6 +1,8 @@
 package commands;
 
 import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 /**
  * Представлява XML елемент в структурата на документа.
  * Този клас предоставя функционалност за управление на XML елементи, включително:
@@ -20,57 +22,112 @@ import java.util.*;
 public class XMLElement {
     private String id;
     private String tag;
-    private Map<String, String> attributes;
-    private List<XMLElement> children;
-    private String textContent;
+    private XMLAttributeMap attributes;
+    private XMLChildList children;
+    private CharSequence textContent;
     private XMLElement parent;
-    private static int nextAutoId = 1;
+    private XMLDocumentOrder order;
+    private int orderStart;
+    private int orderEnd;
+    private static final String DETACHED_PREFIX = "detached_";
+    private static final IDManager DETACHED_IDS = new IDManager();
     /**
-     * Създава нов XML елемент с подадено име на таг.
-     * Автоматично генерира уникален идентификатор за елемента.
+     * Създава нов XML елемент с подадено име на таг, който още не е в
+     * документ. Елементът получава временно ID "detached_N" от общ
+     * генератор, което не може да съвпадне с ID от документ. Когато бъде
+     * добавен в документ (XMLDocument.register() или копиране в компактно
+     * или неизменимо дърво), той получава автоматично ID от документа.
      *
      * @param tag името на XML елемента
      */
     public XMLElement(String tag) {
+        this(tag.intern(), DETACHED_PREFIX + DETACHED_IDS.next());
+    }
+    /**
+     * Създава нов XML елемент с предварително запазен номер за автоматичното ID.
+     * Използва се от парсерите и от XMLDocument.createElement(); паралелният
+     * парсър така дава на елементите същите ID, както при последователно парсване.
+     *
+     * @param tag каноничното име на XML елемента (от String.intern() или XMLSymbolTable)
+     * @param autoId номер от IDManager на документа
+     */
+    XMLElement(String tag, int autoId) {
+        this(tag, "auto_" + autoId);
+    }
+
+    private XMLElement(String tag, String autoId) {
         this.tag = tag;
-        this.attributes = new HashMap<>();
-        this.children = new ArrayList<>();
-        generateId();
+        this.attributes = new XMLAttributeMap();
+        this.children = new XMLChildList(this);
+        generateId(autoId);
         this.attributes.put("id", this.id);
     }
+    /**
+     * Създава изглед без собствени данни: полетата остават null, така че
+     * подкласът трябва да предефинира всички публични методи.
+     */
+    XMLElement() {
+    }
     /**
      * Генерира уникален идентификатор за елемента.
      * Ако вече има зададен ID чрез атрибут, се използва той.
-     * В противен случай се генерира автоматичен нарастващ идентификатор.
+     * В противен случай се използва автоматичният идентификатор.
      */
-    private void generateId() {
+    private void generateId(String autoId) {
         String existingId = attributes.get("id");
         if (existingId != null) {
             this.id = existingId;
         } else {
-            this.id = "auto_" + nextAutoId++;
+            this.id = autoId;
         }
     }
+    /**
+     * @return true, ако елементът е създаден извън документ и още няма
+     *         автоматично ID от документ
+     */
+    boolean hasDetachedId() {
+        return id != null && id.startsWith(DETACHED_PREFIX);
+    }
+    /**
+     * Дава на елемент, създаден извън документ, автоматично ID от документа,
+     * в който се добавя. Атрибутът "id" се сменя, ако още е временното ID.
+     *
+     * @param autoId номер от IDManager на документа
+     */
+    void assignAutoId(int autoId) {
+        String assigned = "auto_" + autoId;
+        if (id.equals(attributes.get("id"))) {
+            attributes.put("id", assigned);
+        }
+        id = assigned;
+    }
     /**
      * Връща ID-то на елемента.
      * @return идентификаторът на елемента
      */
     public String getId() { return id; }
     /**
-     * Връща името на тага на елемента.
+     * Връща името на тага на елемента. Името е канонично (String.intern()),
+     * така че може да се сравнява с == с друго канонично име.
      * @return името на тага
      */
     public String getTag() { return tag; }
     /**
-     * Връща текстовото съдържание на елемента.
+     * Връща текстовото съдържание на елемента. В режим SLICED текстът
+     * се декодира от входа при всяко извикване.
      * @return текстовото съдържание
      */
-    public String getTextContent() { return textContent; }
+    public String getTextContent() { return textContent != null ? textContent.toString() : null; }
     /**
      * Задава текстовото съдържание на елемента.
      * @param text съдържанието за задаване
      */
     public void setTextContent(String text) { this.textContent = text; }
+    /**
+     * Задава текстовото съдържание като отрязък от входа (режим SLICED).
+     * @param text отрязъкът
+     */
+    void setTextSlice(XMLTextSlice text) { this.textContent = text; }
     /**
      * Задава атрибут на елемента.
      * @param key името на атрибута
@@ -83,6 +140,18 @@ public class XMLElement {
      * @return стойността или null, ако не е намерен
      */
     public String getAttribute(String key) { return attributes.get(key); }
+    /**
+     * Премахва атрибут на елемента.
+     * @param key името на атрибута
+     * @return предишната стойност или null, ако атрибутът липсва
+     */
+    public String removeAttribute(String key) { return attributes.remove(key); }
+    /**
+     * Задава атрибут, чиято стойност е отрязък от входа (режим SLICED).
+     * @param key името на атрибута
+     * @param value стойността
+     */
+    void setAttributeSlice(String key, XMLTextSlice value) { attributes.putSlice(key, value); }
     /**
      * Добавя дъщерен елемент към този елемент.
      * @param child дъщерният елемент за добавяне
@@ -109,13 +178,11 @@ public class XMLElement {
      * </pre>
      */
     public XMLElement findById(String targetId) {
-        if (this.id.equals(targetId)) {
-            return this;
-        }
-        for (XMLElement child : children) {
-            XMLElement found = child.findById(targetId);
-            if (found != null) {
-                return found;
+        Iterator<XMLElement> it = preOrderIterator();
+        while (it.hasNext()) {
+            XMLElement element = it.next();
+            if (element.getId().equals(targetId)) {
+                return element;
             }
         }
         return null;
@@ -141,17 +208,63 @@ public class XMLElement {
      * </pre>
      */
     public List<XMLElement> getChildrenByTag(String tag) {
+        String symbol = tag.intern();
+        List<XMLElement> children = getChildren();
+        if (children instanceof XMLChildList) {
+            return ((XMLChildList) children).byTag(symbol);
+        }
         List<XMLElement> result = new ArrayList<>();
         for (XMLElement child : children) {
-            if (child.getTag().equals(tag)) {
+            if (child.getTag() == symbol) {
                 result.add(child);
             }
         }
         return result;
     }
     /**
-     * Връща всички наследници с дадено име на таг.
-     * Извършва рекурсивно търсене в поддървото.
+     * Връща първото дете с дадено име на таг.
+     * При много деца използва индекса по таг, без да обхожда останалите.
+     * @param tag името на тага
+     * @return детето или null, ако няма такова
+     */
+    public XMLElement getFirstChildByTag(String tag) {
+        String symbol = tag.intern();
+        List<XMLElement> children = getChildren();
+        if (children instanceof XMLChildList) {
+            return ((XMLChildList) children).firstByTag(symbol);
+        }
+        for (XMLElement child : children) {
+            if (child.getTag() == symbol) {
+                return child;
+            }
+        }
+        return null;
+    }
+    /**
+     * Премахва всички деца с дадено име на таг.
+     * @param tag името на тага
+     * @return премахнатите деца в реда им в документа
+     */
+    public List<XMLElement> removeChildrenByTag(String tag) {
+        String symbol = tag.intern();
+        List<XMLElement> children = getChildren();
+        if (children instanceof XMLChildList) {
+            return ((XMLChildList) children).removeByTag(symbol);
+        }
+        List<XMLElement> removed = new ArrayList<>();
+        Iterator<XMLElement> it = children.iterator();
+        while (it.hasNext()) {
+            XMLElement child = it.next();
+            if (child.getTag() == symbol) {
+                it.remove();
+                removed.add(child);
+            }
+        }
+        return removed;
+    }
+    /**
+     * Връща всички наследници с дадено име на таг в реда на документа.
+     * Обхожда поддървото веднъж и събира резултата в един списък.
      * @param tag името на тага
      * @return списък с отговарящи наследници
      *
@@ -162,11 +275,14 @@ public class XMLElement {
      */
     public List<XMLElement> getDescendantsByTag(String tag) {
         List<XMLElement> result = new ArrayList<>();
-        for (XMLElement child : children) {
-            if (child.getTag().equals(tag)) {
-                result.add(child);
+        String symbol = tag.intern();
+        Iterator<XMLElement> it = preOrderIterator();
+        it.next();
+        while (it.hasNext()) {
+            XMLElement element = it.next();
+            if (element.getTag() == symbol) {
+                result.add(element);
             }
-            result.addAll(child.getDescendantsByTag(tag));
         }
         return result;
     }
@@ -181,11 +297,113 @@ public class XMLElement {
      */
     public List<XMLElement> getAncestors() {
         List<XMLElement> result = new ArrayList<>();
-        XMLElement current = this.parent;
+        XMLElement current = getParent();
         while (current != null) {
             result.add(current);
             current = current.getParent();
         }
         return result;
     }
+    /**
+     * Проверява дали other е в поддървото на този елемент.
+     * Използва номерацията на дървото в реда на документа, така че след
+     * първото извикване проверката е O(1), без обхождане на родителите.
+     * @param other елементът за проверка
+     * @return true, ако този елемент е предшественик на other
+     *
+     * Пример:
+     * <pre>
+     * boolean inside = book.isAncestorOf(title);
+     * </pre>
+     */
+    public boolean isAncestorOf(XMLElement other) {
+        return XMLDocumentOrder.isAncestor(this, other);
+    }
+    /**
+     * Сравнява елемента с друг елемент от същото дърво по реда им в документа.
+     * @param other другият елемент
+     * @return отрицателно число, нула или положително число, ако този
+     *         елемент е съответно преди, същият или след other
+     * @throws IllegalArgumentException ако елементите са от различни дървета
+     */
+    public int compareDocumentOrder(XMLElement other) {
+        return XMLDocumentOrder.compare(this, other);
+    }
+    /**
+     * @return true за изглед без собствени полета (виж XMLElement())
+     */
+    boolean isView() {
+        return children == null;
+    }
+    XMLDocumentOrder getOrder() {
+        return order;
+    }
+    int getOrderStart() {
+        return orderStart;
+    }
+    int getOrderEnd() {
+        return orderEnd;
+    }
+    /**
+     * Задава номера на елемента в pre-order; краят на интервала е същият,
+     * докато setOrderEnd() не бъде извикан за затварянето на елемента.
+     */
+    void setOrder(XMLDocumentOrder order, int start) {
+        this.order = order;
+        this.orderStart = start;
+        this.orderEnd = start;
+    }
+    void setOrderEnd(int end) {
+        this.orderEnd = end;
+    }
+    /**
+     * Извиква се при всяка промяна в списъка с децата.
+     */
+    void invalidateOrder() {
+        if (order != null) {
+            order.invalidate();
+        }
+    }
+    /**
+     * Връща итератор по елемента и всички негови наследници в реда на
+     * документа (pre-order). Обхождането използва явен стек, така че
+     * работи и за много дълбоки документи.
+     * @return итератор, който започва от този елемент
+     *
+     * Пример:
+     * <pre>
+     * Iterator&lt;XMLElement&gt; it = root.preOrderIterator();
+     * </pre>
+     */
+    public Iterator<XMLElement> preOrderIterator() {
+        return Spliterators.iterator(spliterator());
+    }
+    /**
+     * Връща итератор по елемента и всички негови наследници в post-order:
+     * всеки елемент след децата си, а този елемент - последен.
+     * @return итератор по поддървото
+     */
+    public Iterator<XMLElement> postOrderIterator() {
+        return new XMLPostOrderIterator(this);
+    }
+    /**
+     * Връща Spliterator по елемента и наследниците му в pre-order. Той се
+     * разделя по поддървета, така че може да се използва в паралелен Stream.
+     * @return spliterator по поддървото
+     */
+    public Spliterator<XMLElement> spliterator() {
+        return new XMLTreeSpliterator(this);
+    }
+    /**
+     * Връща Stream от елемента и всички негови наследници в реда на документа.
+     * @return последователен Stream; parallel() го прави паралелен
+     *
+     * Пример:
+     * <pre>
+     * long books = root.stream().parallel().filter(e -&gt; e.getTag().equals("book")).count();
+     * </pre>
+     */
+    public Stream<XMLElement> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
 } 
\ No newline at end of file
@@ -0,0 +1,29 @@
+package commands;
+
+/**
+ * Получател на завършени елементи при инкрементално парсване.
+ * IncrementalXMLParser извиква elementClosed() веднага след затварящия таг
+ * на всеки елемент, така че обработката може да започне, преди да е
+ * пристигнал целият документ.
+ *
+ * Елементът вече е закачен към родителя си и има всички свои деца,
+ * атрибути и текст. Ако дървото не е нужно след обработката, децата на
+ * елемента могат да се изчистят, за да не се натрупва памет.
+ *
+ * Пример за употреба:
+ * <pre>
+ * IncrementalXMLParser parser = new IncrementalXMLParser(element -&gt; {
+ *     if (element.getTag().equals("record")) {
+ *         process(element);
+ *         element.getChildren().clear();
+ *     }
+ * });
+ * </pre>
+ */
+public interface XMLElementListener {
+    /**
+     * Извиква се при затварящ таг (и веднага след самозатварящ се таг).
+     * @param element завършеният елемент
+     */
+    void elementClosed(XMLElement element);
+}
@@ -0,0 +1,1054 @@
+package commands;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Поточен (pull) курсор върху XML документ, кодиран в UTF-8.
+ * Всяко извикване на next() придвижва курсора до следващото събитие
+ * (START_ELEMENT, ATTRIBUTE, TEXT, END_ELEMENT, END_DOCUMENT), а данните
+ * за него се четат с методите за достъп. Не се строи дърво от XMLElement.
+ *
+ * Курсорът използва постоянна памет, независимо от размера на файла:
+ * пази само имената на отворените елементи и позициите на текущия таг.
+ * Файловете се картографират на прозорци, така че може да се обхождат
+ * и документи, по-големи от 2 GB. Коментари, инструкции за обработка и
+ * DOCTYPE се прескачат, а CDATA се връща като TEXT.
+ *
+ * Освен методите, които връщат String, курсорът предлага и варианти
+ * (getNameChars(), getTextChars() и т.н.), които връщат преизползваем
+ * изглед върху входа и не заделят памет за всяко събитие.
+ *
+ * Проверката за добре формиран XML се извършва по време на обхождането;
+ * при грешка се хвърля XMLParseException с ред и колона.
+ *
+ * Курсор, създаден с incremental(), не чете сам входа, а получава байтовете
+ * на части чрез feed(). Когато следващият токен още не е пристигнал изцяло,
+ * next() връща NEED_INPUT, без да блокира; след следващия feed() търсенето
+ * на края на токена продължава оттам, докъдето е стигнало, така че дълъг
+ * текст или таг, пристигащ на много части, се сканира само веднъж. Краят на
+ * входа се обявява с endOfInput().
+ *
+ * Пример за употреба:
+ * <pre>
+ * try (XMLEventCursor cursor = XMLEventCursor.open("big.xml")) {
+ *     while (cursor.next() != XMLEventType.END_DOCUMENT) {
+ *         if (cursor.getEventType() == XMLEventType.START_ELEMENT) {
+ *             System.out.println(cursor.getName());
+ *         }
+ *     }
+ * }
+ * </pre>
+ */
+public class XMLEventCursor implements Closeable {
+    private static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final int INITIAL_DEPTH = 32;
+    private static final int INITIAL_ATTRIBUTES = 8;
+    private static final int INITIAL_INPUT_SIZE = 8192;
+    private static final int MARKUP_LOOKAHEAD = 9; // дължината на "<![CDATA["
+
+    /**
+     * Сигнал, че текущият токен не се побира в прозореца и трябва да се прочете отново.
+     */
+    private static final class Underflow extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        Underflow() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final Underflow UNDERFLOW = new Underflow();
+
+    private final FileChannel channel;
+    private final long channelSize;
+    private final boolean fragment;
+    private final boolean incremental;
+    private boolean byteOrderMarkPending;
+    private ByteBuffer buf;
+    private int limit;
+    private long windowOffset;
+    private boolean lastWindow;
+    private int pos;
+    // Докъде е стигнало търсенето на края на незавършения токен при pos
+    // (валидно само ако е след pos) и състоянието на търсенето там:
+    // дълбочината на [] в декларация или отворената кавичка в таг.
+    private int resumeAt;
+    private int resumeState;
+    private int markupStart;
+    private long linesBefore;
+    private long columnBefore;
+
+    private XMLEventType event;
+    private boolean rootSeen;
+    private int depth;
+    private byte[] names = new byte[256];
+    private int namesLength;
+    private int[] nameOffsets = new int[INITIAL_DEPTH];
+
+    private int[] attributes = new int[INITIAL_ATTRIBUTES * 4];
+    private int attributeCount;
+    private int attributeIndex;
+    private boolean emptyElement;
+
+    private int textStart;
+    private int textEnd;
+    private byte[] decodeBuffer = new byte[256];
+    private final XMLSymbolTable symbols = new XMLSymbolTable();
+
+    private final XMLCharSequence nameChars = new XMLCharSequence();
+    private final XMLCharSequence attributeNameChars = new XMLCharSequence();
+    private final XMLCharSequence attributeValueChars = new XMLCharSequence();
+    private final XMLCharSequence textChars = new XMLCharSequence();
+
+    /**
+     * Създава курсор върху целия документ в буфера (между position и limit).
+     * Позицията на буфера не се променя.
+     *
+     * @param input байтовете на документа
+     */
+    public XMLEventCursor(ByteBuffer input) {
+        this.channel = null;
+        this.fragment = false;
+        this.incremental = false;
+        this.channelSize = input.remaining();
+        this.buf = input.slice();
+        this.limit = buf.limit();
+        this.lastWindow = true;
+        this.pos = skipByteOrderMark();
+    }
+
+    /**
+     * Създава курсор върху байтовете [from, to) на документ, които съдържат
+     * поредица от съседни елементи (фрагмент), например част от децата на корена.
+     * Във фрагмент се допускат няколко елемента на най-горно ниво и текст между тях.
+     * Буферът не се копира и може да се чете едновременно от няколко курсора;
+     * грешките се докладват с ред и колона спрямо целия документ.
+     *
+     * @param document целият документ; индекс 0 е началото му
+     * @param from началото на фрагмента
+     * @param to краят на фрагмента
+     */
+    XMLEventCursor(ByteBuffer document, int from, int to) {
+        this.channel = null;
+        this.fragment = true;
+        this.incremental = false;
+        this.channelSize = to;
+        this.buf = document;
+        this.limit = to;
+        this.lastWindow = true;
+        this.pos = from;
+    }
+
+    /**
+     * Премества курсор във фрагментен режим върху нов фрагмент [from, to) от
+     * същия документ. Буферите и таблицата на символите се запазват, така че
+     * много малки фрагменти не заделят памет и не декодират имената наново.
+     *
+     * @param from началото на фрагмента
+     * @param to краят на фрагмента
+     */
+    void reset(int from, int to) {
+        if (!fragment) {
+            throw new IllegalStateException("Only fragment cursors can be reset");
+        }
+        limit = to;
+        pos = from;
+        event = null;
+        depth = 0;
+        namesLength = 0;
+        attributeCount = 0;
+        attributeIndex = 0;
+        emptyElement = false;
+    }
+
+    private XMLEventCursor() {
+        this.channel = null;
+        this.fragment = false;
+        this.incremental = true;
+        this.channelSize = -1;
+        this.buf = ByteBuffer.allocate(INITIAL_INPUT_SIZE);
+        this.limit = 0;
+        this.lastWindow = false;
+        this.byteOrderMarkPending = true;
+    }
+
+    private XMLEventCursor(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.fragment = false;
+        this.incremental = false;
+        this.channelSize = channel.size();
+        this.lastWindow = false;
+        mapWindow(0, DEFAULT_WINDOW_SIZE);
+        this.pos = skipByteOrderMark();
+    }
+
+    /**
+     * Отваря курсор върху файл, който се картографира в паметта на прозорци.
+     *
+     * @param filename път до XML файла
+     * @return курсор, позициониран преди първото събитие
+     * @throws IOException ако файлът не може да бъде отворен
+     */
+    public static XMLEventCursor open(String filename) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        try {
+            return new XMLEventCursor(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Създава курсор, който получава входа на части чрез feed().
+     *
+     * @return курсор без вход, позициониран преди първото събитие
+     */
+    public static XMLEventCursor incremental() {
+        return new XMLEventCursor();
+    }
+
+    /**
+     * Добавя следващата част от входа на курсор, създаден с incremental().
+     * Байтовете между position и limit се копират и позицията на chunk се
+     * премества до limit. Вече прочетените байтове се изхвърлят, така че
+     * курсорът пази само незавършения токен.
+     *
+     * @param chunk следващите байтове на документа
+     * @throws IllegalStateException ако курсорът не е инкрементален или входът вече е приключил
+     */
+    public void feed(ByteBuffer chunk) {
+        if (!incremental) {
+            throw new IllegalStateException("Cursor does not accept input");
+        }
+        if (lastWindow) {
+            throw new IllegalStateException("Input has already ended");
+        }
+        if (event == null || event == XMLEventType.NEED_INPUT) {
+            compact();
+        }
+        int needed = limit + chunk.remaining();
+        if (needed > buf.capacity()) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(needed, buf.capacity() * 2));
+            grown.put(0, buf, 0, limit);
+            buf = grown;
+        }
+        int length = chunk.remaining();
+        buf.put(limit, chunk, chunk.position(), length);
+        chunk.position(chunk.limit());
+        limit += length;
+    }
+
+    /**
+     * Обявява, че няма да има повече вход. След това next() не връща
+     * NEED_INPUT, а докладва незавършените конструкции като грешки.
+     */
+    public void endOfInput() {
+        if (!incremental) {
+            throw new IllegalStateException("Cursor does not accept input");
+        }
+        lastWindow = true;
+    }
+
+    /**
+     * Придвижва курсора до следващото събитие.
+     *
+     * @return вида на новото текущо събитие
+     * @throws IOException ако XML не е добре форматиран или входът не може да бъде прочетен
+     * @throws NoSuchElementException ако курсорът вече е достигнал END_DOCUMENT
+     */
+    public XMLEventType next() throws IOException {
+        if (event == XMLEventType.END_DOCUMENT) {
+            throw new NoSuchElementException("No more XML events");
+        }
+        if (byteOrderMarkPending) {
+            if (limit < 3 && !lastWindow) {
+                return event = XMLEventType.NEED_INPUT;
+            }
+            pos = skipByteOrderMark();
+            byteOrderMarkPending = false;
+        }
+        if (event == XMLEventType.END_ELEMENT) {
+            namesLength = nameOffsets[depth];
+        }
+        if (event == XMLEventType.START_ELEMENT || event == XMLEventType.ATTRIBUTE) {
+            if (attributeIndex + 1 < attributeCount) {
+                attributeIndex++;
+                return event = XMLEventType.ATTRIBUTE;
+            }
+            if (emptyElement) {
+                emptyElement = false;
+                depth--;
+                return event = XMLEventType.END_ELEMENT;
+            }
+        }
+        while (true) {
+            int tokenStart = pos;
+            try {
+                XMLEventType next = scan();
+                resumeAt = 0;
+                if (next != null) {
+                    markupStart = tokenStart;
+                    return event = next;
+                }
+            } catch (Underflow u) {
+                pos = tokenStart;
+                if (incremental) {
+                    return event = XMLEventType.NEED_INPUT;
+                }
+                refill(tokenStart);
+            }
+        }
+    }
+
+    /**
+     * Проверява дали има още събития след текущото.
+     * @return false само ако текущото събитие е END_DOCUMENT
+     */
+    public boolean hasNext() {
+        return event != XMLEventType.END_DOCUMENT;
+    }
+
+    /**
+     * Връща вида на текущото събитие.
+     * @return текущото събитие или null преди първото извикване на next()
+     */
+    public XMLEventType getEventType() {
+        return event;
+    }
+
+    /**
+     * Връща името на текущия елемент. При ATTRIBUTE това е елементът, към който
+     * принадлежи атрибутът. Името е канонично (String.intern()), така че
+     * повтарящите се имена не заемат нова памет и могат да се сравняват с ==.
+     * @return името на тага
+     */
+    public String getName() {
+        checkEvent(XMLEventType.START_ELEMENT, XMLEventType.ATTRIBUTE, XMLEventType.END_ELEMENT);
+        int nameStart = nameOffsets[event == XMLEventType.END_ELEMENT ? depth : depth - 1];
+        return symbols.symbol(names, nameStart, namesLength);
+    }
+
+    /**
+     * Връща дълбочината на текущия елемент; коренът е на дълбочина 1.
+     * За TEXT това е дълбочината на елемента, който съдържа текста.
+     * @return дълбочината на текущото събитие
+     */
+    public int getDepth() {
+        return event == XMLEventType.END_ELEMENT ? depth + 1 : depth;
+    }
+
+    /**
+     * Връща позицията в буфера, от която започва текущият токен (например '&lt;'
+     * на отварящия таг). При ATTRIBUTE и при автоматичния END_ELEMENT на
+     * самозатварящ се таг остава позицията на отварящия таг.
+     * Позициите са абсолютни само за курсор върху един буфер.
+     * @return началото на текущия токен
+     */
+    int getMarkupStart() {
+        return markupStart;
+    }
+
+    /**
+     * Връща позицията в буфера непосредствено след текущия токен.
+     * @return краят на текущия токен
+     */
+    int getMarkupEnd() {
+        return pos;
+    }
+
+    /**
+     * Връща броя на атрибутите на текущия отварящ таг.
+     * @return броят ATTRIBUTE събития след START_ELEMENT
+     */
+    int getAttributeCount() {
+        checkEvent(XMLEventType.START_ELEMENT, XMLEventType.ATTRIBUTE);
+        return attributeCount;
+    }
+
+    /**
+     * Връща името на текущия атрибут. Както при getName(), името е канонично.
+     * @return името на атрибута
+     */
+    public String getAttributeName() {
+        checkEvent(XMLEventType.ATTRIBUTE);
+        int base = attributeIndex * 4;
+        return symbol(attributes[base], attributes[base + 1]);
+    }
+
+    /**
+     * Връща стойността на текущия атрибут, без кавичките.
+     * @return стойността на атрибута
+     */
+    public String getAttributeValue() {
+        checkEvent(XMLEventType.ATTRIBUTE);
+        int base = attributeIndex * 4;
+        return decode(attributes[base + 2], attributes[base + 3]);
+    }
+
+    /**
+     * Връща името на текущия елемент като изглед, без да създава String.
+     * Изгледът е валиден до следващото извикване на next().
+     * @return името на тага
+     */
+    public CharSequence getNameChars() {
+        checkEvent(XMLEventType.START_ELEMENT, XMLEventType.ATTRIBUTE, XMLEventType.END_ELEMENT);
+        int nameStart = nameOffsets[event == XMLEventType.END_ELEMENT ? depth : depth - 1];
+        nameChars.set(names, nameStart, namesLength);
+        return nameChars;
+    }
+
+    /**
+     * Връща името на текущия атрибут като изглед, без да създава String.
+     * @return името на атрибута
+     */
+    public CharSequence getAttributeNameChars() {
+        checkEvent(XMLEventType.ATTRIBUTE);
+        int base = attributeIndex * 4;
+        attributeNameChars.set(buf, attributes[base], attributes[base + 1]);
+        return attributeNameChars;
+    }
+
+    /**
+     * Връща стойността на текущия атрибут като изглед, без да създава String.
+     * @return стойността на атрибута
+     */
+    public CharSequence getAttributeValueChars() {
+        checkEvent(XMLEventType.ATTRIBUTE);
+        int base = attributeIndex * 4;
+        attributeValueChars.set(buf, attributes[base + 2], attributes[base + 3]);
+        return attributeValueChars;
+    }
+
+    /**
+     * Връща текста на текущото TEXT събитие като изглед, без да създава String.
+     * @return текстът
+     */
+    public CharSequence getTextChars() {
+        checkEvent(XMLEventType.TEXT);
+        textChars.set(buf, textStart, textEnd);
+        return textChars;
+    }
+
+    /**
+     * @return дължината в байтове (UTF-8) на стойността на текущия атрибут
+     */
+    int getAttributeValueByteCount() {
+        checkEvent(XMLEventType.ATTRIBUTE);
+        int base = attributeIndex * 4;
+        return attributes[base + 3] - attributes[base + 2];
+    }
+
+    /**
+     * Копира байтовете на стойността на текущия атрибут в target от позиция
+     * offset; target трябва да има място за getAttributeValueByteCount() байта.
+     */
+    void copyAttributeValue(byte[] target, int offset) {
+        checkEvent(XMLEventType.ATTRIBUTE);
+        int base = attributeIndex * 4;
+        buf.get(attributes[base + 2], target, offset, attributes[base + 3] - attributes[base + 2]);
+    }
+
+    /**
+     * @return дължината в байтове (UTF-8) на текста на текущото TEXT събитие
+     */
+    int getTextByteCount() {
+        checkEvent(XMLEventType.TEXT);
+        return textEnd - textStart;
+    }
+
+    /**
+     * Копира байтовете на текста на текущото TEXT събитие в target от позиция
+     * offset; target трябва да има място за getTextByteCount() байта.
+     */
+    void copyText(byte[] target, int offset) {
+        checkEvent(XMLEventType.TEXT);
+        buf.get(textStart, target, offset, textEnd - textStart);
+    }
+
+    /**
+     * Връща стойността на текущия атрибут като отрязък от входа, без копиране.
+     * @return отрязъкът или null, ако входът не е масив, който остава
+     *         непроменен (виж sliceOf())
+     */
+    XMLTextSlice getAttributeValueSlice() {
+        checkEvent(XMLEventType.ATTRIBUTE);
+        int base = attributeIndex * 4;
+        return sliceOf(attributes[base + 2], attributes[base + 3]);
+    }
+
+    /**
+     * Връща текста на текущото TEXT събитие като отрязък от входа, без
+     * копиране и без изрязване на празните символи.
+     * @return отрязъкът или null, ако входът не е масив, който остава
+     *         непроменен (виж sliceOf())
+     */
+    XMLTextSlice getTextSlice() {
+        checkEvent(XMLEventType.TEXT);
+        return sliceOf(textStart, textEnd);
+    }
+
+    /**
+     * Проверява дали текущият атрибут е декларация на пространство от имена (xmlns...).
+     * @return true ако името на атрибута започва с "xmlns"
+     */
+    public boolean isNamespaceDeclaration() {
+        checkEvent(XMLEventType.ATTRIBUTE);
+        return startsWith("xmlns", attributes[attributeIndex * 4]);
+    }
+
+    /**
+     * Връща текста на текущото TEXT събитие без изрязване на празните символи.
+     * @return текстът
+     */
+    public String getText() {
+        checkEvent(XMLEventType.TEXT);
+        return decode(textStart, textEnd);
+    }
+
+    /**
+     * Проверява дали текущият текст се състои само от празни символи.
+     * @return true ако текстът е само от празни символи
+     */
+    public boolean isWhitespace() {
+        checkEvent(XMLEventType.TEXT);
+        for (int i = textStart; i < textEnd; i++) {
+            if (at(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Затваря файла, ако курсорът е отворен с open().
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Разпознава следващия токен от текущата позиция.
+     *
+     * @return новото събитие или null, ако токенът е прескочен (коментар, празни символи и т.н.)
+     */
+    private XMLEventType scan() throws IOException, Underflow {
+        if (pos >= limit) {
+            if (!lastWindow) {
+                throw UNDERFLOW;
+            }
+            if (depth > 0) {
+                throw error("XML is malformed: tags are not properly balanced, <" + nameAt(depth - 1) + "> is never closed", pos);
+            }
+            if (!rootSeen && !fragment) {
+                throw error("XML is malformed: no root element found", pos);
+            }
+            return XMLEventType.END_DOCUMENT;
+        }
+
+        if (at(pos) != '<') {
+            int lt = indexOf('<', Math.max(pos, resumeAt));
+            if (lt == -1) {
+                if (!lastWindow) {
+                    resumeLater(limit, 0);
+                    throw UNDERFLOW;
+                }
+                lt = limit;
+            }
+            if (depth == 0) {
+                if (!fragment) {
+                    checkOutsideText(pos, lt);
+                }
+                pos = lt;
+                return null;
+            }
+            textStart = pos;
+            textEnd = lt;
+            pos = lt;
+            return XMLEventType.TEXT;
+        }
+
+        if (limit - pos < MARKUP_LOOKAHEAD && !lastWindow) {
+            throw UNDERFLOW;
+        }
+        if (startsWith("<!--", pos)) {
+            pos = skipPast("-->", pos + 4, "Unclosed comment");
+            return null;
+        }
+        if (startsWith("<![CDATA[", pos)) {
+            int from = Math.max(pos + 9, resumeAt);
+            int end = indexOf("]]>", from);
+            if (end == -1) {
+                resumeLater(Math.max(from, limit - 2), 0);
+                incomplete("Unclosed CDATA section", pos);
+            }
+            textStart = pos + 9;
+            textEnd = end;
+            pos = end + 3;
+            return depth > 0 ? XMLEventType.TEXT : null;
+        }
+        if (startsWith("<?", pos)) {
+            pos = skipPast("?>", pos + 2, "Unclosed processing instruction");
+            return null;
+        }
+        if (startsWith("<!", pos)) {
+            pos = skipDeclaration(pos + 2);
+            return null;
+        }
+        if (pos + 1 < limit && at(pos + 1) == '/') {
+            return scanEndTag();
+        }
+        if (resumeAt > pos) {
+            awaitTagEnd();
+        }
+        try {
+            return scanStartTag();
+        } catch (Underflow u) {
+            if (resumeAt <= pos) {
+                resumeLater(pos + 1, 0);
+            }
+            throw u;
+        }
+    }
+
+    /**
+     * Отварящият таг вече веднъж не се е побрал във входа: преди да бъде
+     * разбран отново, се изчаква '>' извън кавички, като търсенето продължава
+     * от мястото, където е спряло при предишния feed().
+     */
+    private void awaitTagEnd() throws Underflow {
+        int i = resumeAt;
+        int quote = resumeState;
+        while (i < limit) {
+            if (quote != 0) {
+                int end = indexOf(quote, i);
+                if (end == -1) {
+                    i = limit;
+                    break;
+                }
+                quote = 0;
+                i = end + 1;
+                continue;
+            }
+            int c = at(i);
+            if (c == '>') {
+                return;
+            }
+            if (c == '"' || c == '\'') {
+                quote = c;
+            }
+            i++;
+        }
+        if (!lastWindow) {
+            resumeLater(i, quote);
+            throw UNDERFLOW;
+        }
+    }
+
+    /**
+     * Прочита целия отварящ таг наведнъж и запомня позициите на атрибутите му,
+     * така че следващите ATTRIBUTE събития не изискват ново сканиране.
+     */
+    private XMLEventType scanStartTag() throws IOException, Underflow {
+        int tagStart = pos;
+        if (rootSeen && depth == 0 && !fragment) {
+            throw error("XML is malformed: content after the root element", tagStart);
+        }
+        int nameStart = tagStart + 1;
+        int nameEnd = scanName(nameStart);
+        if (nameEnd >= limit) {
+            incomplete("Invalid XML: unclosed tag", tagStart);
+        }
+        if (nameEnd == nameStart) {
+            throw error("XML is malformed: missing tag name", tagStart);
+        }
+
+        attributeCount = 0;
+        int i = nameEnd;
+        while (true) {
+            i = skipWhitespace(i);
+            if (i >= limit) {
+                incomplete("Invalid XML: unclosed tag <" + decode(nameStart, nameEnd) + ">", i);
+            }
+            int c = at(i);
+            if (c == '>' || c == '/') {
+                break;
+            }
+
+            int attrNameStart = i;
+            int attrNameEnd = scanName(attrNameStart);
+            if (attrNameEnd >= limit) {
+                incomplete("Invalid XML: unclosed tag <" + decode(nameStart, nameEnd) + ">", i);
+            }
+            if (attrNameEnd == attrNameStart) {
+                throw error("Invalid XML: unexpected '" + (char) c + "' in <" + decode(nameStart, nameEnd) + ">", i);
+            }
+            i = skipWhitespace(attrNameEnd);
+            if (i >= limit) {
+                incomplete("Invalid XML: unclosed tag <" + decode(nameStart, nameEnd) + ">", i);
+            }
+            if (at(i) != '=') {
+                throw error("Invalid XML: attribute without value in <" + decode(nameStart, nameEnd) + ">", i);
+            }
+            i = skipWhitespace(i + 1);
+            if (i >= limit) {
+                incomplete("Invalid XML: unclosed tag <" + decode(nameStart, nameEnd) + ">", i);
+            }
+            int quote = at(i);
+            if (quote != '"' && quote != '\'') {
+                throw error("Invalid XML: attribute value must be quoted", i);
+            }
+            int valueEnd = indexOf(quote, i + 1);
+            if (valueEnd == -1) {
+                incomplete("Invalid XML: unclosed attribute value", i);
+            }
+            addAttribute(attrNameStart, attrNameEnd, i + 1, valueEnd);
+            i = valueEnd + 1;
+        }
+
+        boolean selfClosing = at(i) == '/';
+        if (selfClosing) {
+            i++;
+            if (i >= limit) {
+                incomplete("Invalid XML: unclosed tag <" + decode(nameStart, nameEnd) + ">", i);
+            }
+            if (at(i) != '>') {
+                throw error("XML is malformed: expected '>' after '/' in <" + decode(nameStart, nameEnd) + ">", i);
+            }
+        }
+        pos = i + 1;
+
+        pushName(nameStart, nameEnd);
+        rootSeen = true;
+        emptyElement = selfClosing;
+        attributeIndex = -1;
+        return XMLEventType.START_ELEMENT;
+    }
+
+    /**
+     * Прочита затварящ таг и проверява, че съвпада с последния отворен елемент.
+     */
+    private XMLEventType scanEndTag() throws IOException, Underflow {
+        int closeStart = pos;
+        int nameStart = pos + 2;
+        int nameEnd = scanName(nameStart);
+        int gt = skipWhitespace(nameEnd);
+        if (gt >= limit) {
+            incomplete("Invalid XML: unclosed tag", gt);
+        }
+        if (at(gt) != '>') {
+            throw error("Invalid XML: unclosed tag", gt);
+        }
+        if (depth == 0 || !matchesOpenName(nameStart, nameEnd)) {
+            throw error("XML is malformed: tags are not properly balanced, found </"
+                    + decode(nameStart, nameEnd) + ">"
+                    + (depth == 0 ? " without an open element" : " while <" + nameAt(depth - 1) + "> is open"), closeStart);
+        }
+        pos = gt + 1;
+        depth--;
+        return XMLEventType.END_ELEMENT;
+    }
+
+    private int skipPast(String terminator, int from, String message) throws IOException, Underflow {
+        from = Math.max(from, resumeAt);
+        int end = indexOf(terminator, from);
+        if (end == -1) {
+            resumeLater(Math.max(from, limit - terminator.length() + 1), 0);
+            incomplete(message, pos);
+        }
+        return end + terminator.length();
+    }
+
+    /**
+     * Прескача декларация като &lt;!DOCTYPE ...&gt;, включително вътрешно подмножество в [].
+     */
+    private int skipDeclaration(int i) throws IOException, Underflow {
+        int bracketDepth = 0;
+        if (resumeAt > i) {
+            i = resumeAt;
+            bracketDepth = resumeState;
+        }
+        while (i < limit) {
+            int c = at(i);
+            if (c == '[') {
+                bracketDepth++;
+            } else if (c == ']') {
+                bracketDepth--;
+            } else if (c == '>' && bracketDepth <= 0) {
+                return i + 1;
+            }
+            i++;
+        }
+        resumeLater(i, bracketDepth);
+        incomplete("Invalid XML: unclosed declaration", pos);
+        return i;
+    }
+
+    /**
+     * Извън елементите се допускат само празни символи.
+     */
+    private void checkOutsideText(int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            if (at(i) > ' ') {
+                throw error("XML is malformed: text outside of the root element", i);
+            }
+        }
+    }
+
+    /**
+     * Токенът е прекъснат от края на прозореца: ако има още вход, той се
+     * прочита отново след презареждане; иначе документът е непълен.
+     */
+    private void incomplete(String message, int offset) throws IOException, Underflow {
+        if (!lastWindow) {
+            throw UNDERFLOW;
+        }
+        throw error(message, offset);
+    }
+
+    /**
+     * Запомня докъде е стигнало търсенето на края на незавършения токен,
+     * за да продължи оттам, след като пристигне още вход.
+     */
+    private void resumeLater(int at, int state) {
+        resumeAt = at;
+        resumeState = state;
+    }
+
+    /**
+     * Картографира нов прозорец, който започва от началото на незавършения токен.
+     * Преди това преброява редовете в изоставената част за съобщенията за грешки.
+     */
+    private void refill(int keepFrom) throws IOException {
+        countLines(0, keepFrom);
+        int kept = limit - keepFrom;
+        long size = Math.max(DEFAULT_WINDOW_SIZE, 2L * kept);
+        mapWindow(windowOffset + keepFrom, (int) Math.min(size, Integer.MAX_VALUE));
+        resumeAt = resumeAt > keepFrom ? resumeAt - keepFrom : 0;
+        pos = 0;
+    }
+
+    /**
+     * Изхвърля вече прочетените байтове от началото на буфера на инкрементален курсор.
+     */
+    private void compact() {
+        if (pos == 0) {
+            return;
+        }
+        countLines(0, pos);
+        buf.put(0, buf, pos, limit - pos);
+        limit -= pos;
+        resumeAt = resumeAt > pos ? resumeAt - pos : 0;
+        pos = 0;
+    }
+
+    private void mapWindow(long offset, int size) throws IOException {
+        long length = Math.min(size, channelSize - offset);
+        buf = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        limit = (int) length;
+        windowOffset = offset;
+        lastWindow = offset + length == channelSize;
+    }
+
+    private void countLines(int from, int to) {
+        for (int i = from; i < to; i++) {
+            int c = at(i);
+            if (c == '\n') {
+                linesBefore++;
+                columnBefore = 0;
+            } else if ((c & 0xC0) != 0x80) {
+                columnBefore++;
+            }
+        }
+    }
+
+    /**
+     * Създава грешка с ред и колона за дадена позиция в текущия прозорец.
+     * Редовете се броят само при грешка, така че успешното парсване не плаща за тях.
+     * Колоната се брои в символи, а не в байтове.
+     */
+    private XMLParseException error(String message, int offset) {
+        long line = linesBefore + 1;
+        long column = columnBefore + 1;
+        int end = Math.min(offset, limit);
+        for (int i = 0; i < end; i++) {
+            int c = at(i);
+            if (c == '\n') {
+                line++;
+                column = 1;
+            } else if ((c & 0xC0) != 0x80) {
+                column++;
+            }
+        }
+        return new XMLParseException(message, (int) line, (int) column);
+    }
+
+    private void checkEvent(XMLEventType... allowed) {
+        for (XMLEventType type : allowed) {
+            if (event == type) {
+                return;
+            }
+        }
+        throw new IllegalStateException("Not available for event " + event);
+    }
+
+    private void addAttribute(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        int base = attributeCount * 4;
+        if (base + 4 > attributes.length) {
+            attributes = Arrays.copyOf(attributes, attributes.length * 2);
+        }
+        attributes[base] = nameStart;
+        attributes[base + 1] = nameEnd;
+        attributes[base + 2] = valueStart;
+        attributes[base + 3] = valueEnd;
+        attributeCount++;
+    }
+
+    /**
+     * Копира името на отворения елемент в стека с имена, за да остане
+     * достъпно и след като прозорецът бъде сменен.
+     */
+    private void pushName(int nameStart, int nameEnd) {
+        int len = nameEnd - nameStart;
+        if (depth == nameOffsets.length) {
+            nameOffsets = Arrays.copyOf(nameOffsets, depth * 2);
+        }
+        if (namesLength + len > names.length) {
+            names = Arrays.copyOf(names, Math.max(names.length * 2, namesLength + len));
+        }
+        buf.get(nameStart, names, namesLength, len);
+        nameOffsets[depth++] = namesLength;
+        namesLength += len;
+    }
+
+    private boolean matchesOpenName(int nameStart, int nameEnd) {
+        int openStart = nameOffsets[depth - 1];
+        if (namesLength - openStart != nameEnd - nameStart) {
+            return false;
+        }
+        for (int k = 0; k < nameEnd - nameStart; k++) {
+            if (names[openStart + k] != buf.get(nameStart + k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String nameAt(int level) {
+        int start = nameOffsets[level];
+        int end = level + 1 < depth ? nameOffsets[level + 1] : namesLength;
+        return new String(names, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private int skipByteOrderMark() {
+        if (limit >= 3 && at(0) == 0xEF && at(1) == 0xBB && at(2) == 0xBF) {
+            return 3;
+        }
+        return 0;
+    }
+
+    private int at(int i) {
+        return buf.get(i) & 0xFF;
+    }
+
+    private int indexOf(int c, int from) {
+        return XMLByteScanner.indexOf(buf, c, from, limit);
+    }
+
+    private int indexOf(String terminator, int from) {
+        int first = terminator.charAt(0);
+        for (int i = indexOf(first, from); i != -1; i = indexOf(first, i + 1)) {
+            if (i + terminator.length() > limit) {
+                return -1;
+            }
+            if (startsWith(terminator, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean startsWith(String prefix, int i) {
+        if (i + prefix.length() > limit) {
+            return false;
+        }
+        for (int k = 0; k < prefix.length(); k++) {
+            if (at(i + k) != prefix.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int scanName(int i) {
+        while (i < limit) {
+            int c = at(i);
+            if (c <= ' ' || c == '>' || c == '/' || c == '=') {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    private int skipWhitespace(int i) {
+        while (i < limit && at(i) <= ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Декодира байтовете [start, end) от текущия прозорец като UTF-8.
+     * При буфер в паметта се чете директно от масива му; при картографиран
+     * файл байтовете се копират в преизползван временен масив.
+     */
+    private String symbol(int start, int end) {
+        if (buf.hasArray()) {
+            int offset = buf.arrayOffset();
+            return symbols.symbol(buf.array(), offset + start, offset + end);
+        }
+        int len = end - start;
+        if (decodeBuffer.length < len) {
+            decodeBuffer = new byte[Math.max(len, decodeBuffer.length * 2)];
+        }
+        buf.get(start, decodeBuffer, 0, len);
+        return symbols.symbol(decodeBuffer, 0, len);
+    }
+
+    /**
+     * Отрязък може да се направи само от буфер в heap-а, който курсорът не
+     * презаписва: инкременталният курсор преизползва масива си, а
+     * картографираният файл може да бъде презаписан (например от save).
+     */
+    private XMLTextSlice sliceOf(int start, int end) {
+        if (incremental || !buf.hasArray()) {
+            return null;
+        }
+        int offset = buf.arrayOffset();
+        return XMLTextSlice.of(buf.array(), offset + start, offset + end);
+    }
+
+    private String decode(int start, int end) {
+        int len = end - start;
+        if (buf.hasArray()) {
+            return new String(buf.array(), buf.arrayOffset() + start, len, StandardCharsets.UTF_8);
+        }
+        if (decodeBuffer.length < len) {
+            decodeBuffer = new byte[Math.max(len, decodeBuffer.length * 2)];
+        }
+        buf.get(start, decodeBuffer, 0, len);
+        return new String(decodeBuffer, 0, len, StandardCharsets.UTF_8);
+    }
+}
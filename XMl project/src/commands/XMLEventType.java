@@ -0,0 +1,20 @@
+package commands;
+
+/**
+ * Видове събития, които XMLEventCursor връща при обхождане на документ.
+ * - START_ELEMENT: отварящ таг (и самозатварящ се таг)
+ * - ATTRIBUTE: по едно събитие за всеки атрибут след START_ELEMENT
+ * - TEXT: непрекъснат текст или съдържание на CDATA секция
+ * - END_ELEMENT: затварящ таг (за самозатварящ се таг се генерира автоматично)
+ * - END_DOCUMENT: краят на входа след коренния елемент
+ * - NEED_INPUT: само при инкрементален курсор - следващият токен още не е
+ *   пристигнал изцяло и трябва да се подаде още вход с feed()
+ */
+public enum XMLEventType {
+    START_ELEMENT,
+    ATTRIBUTE,
+    TEXT,
+    END_ELEMENT,
+    END_DOCUMENT,
+    NEED_INPUT
+}
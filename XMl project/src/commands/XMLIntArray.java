@@ -0,0 +1,78 @@
+package commands;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Масив от int с променлив размер, който е или обикновен int[] в heap-а,
+ * или директен буфер извън него (ByteBuffer.allocateDirect). Паметта на
+ * директния буфер не се обхожда от garbage collector-а, така че големи
+ * колони не удължават паузите му.
+ */
+final class XMLIntArray {
+    private int[] heap;
+    private IntBuffer direct;
+
+    /**
+     * @param capacity началният брой елементи
+     * @param offHeap true за директен буфер извън heap-а
+     */
+    XMLIntArray(int capacity, boolean offHeap) {
+        if (offHeap) {
+            direct = allocateDirect(capacity);
+        } else {
+            heap = new int[capacity];
+        }
+    }
+
+    int get(int index) {
+        return heap != null ? heap[index] : direct.get(index);
+    }
+
+    void set(int index, int value) {
+        if (heap != null) {
+            heap[index] = value;
+        } else {
+            direct.put(index, value);
+        }
+    }
+
+    int capacity() {
+        return heap != null ? heap.length : direct.capacity();
+    }
+
+    /**
+     * Задава value на всички елементи в [from, to).
+     */
+    void fill(int from, int to, int value) {
+        if (heap != null) {
+            Arrays.fill(heap, from, to, value);
+        } else {
+            for (int i = from; i < to; i++) {
+                direct.put(i, value);
+            }
+        }
+    }
+
+    /**
+     * Сменя капацитета, като запазва първите min(capacity, стария капацитет) елемента.
+     */
+    void resize(int capacity) {
+        if (heap != null) {
+            heap = Arrays.copyOf(heap, capacity);
+            return;
+        }
+        IntBuffer resized = allocateDirect(capacity);
+        IntBuffer source = direct.duplicate();
+        source.limit(Math.min(capacity, source.capacity()));
+        direct = resized.put(source).clear();
+    }
+
+    private static IntBuffer allocateDirect(int capacity) {
+        return ByteBuffer.allocateDirect(Math.multiplyExact(capacity, Integer.BYTES))
+                .order(ByteOrder.nativeOrder())
+                .asIntBuffer();
+    }
+}
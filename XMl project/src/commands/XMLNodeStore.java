@@ -0,0 +1,677 @@
+package commands;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Компактно съхранение на XML дърво в паралелни масиви от int (structure of
+ * arrays). Всеки възел е номер; за него се пазят родителят, първото дете,
+ * следващият брат, номерът на тага в таблицата на имената, началото на
+ * атрибутите му и номерът на текста му - по 24 байта на възел, без обекти.
+ *
+ * Атрибутите на един възел стоят в последователни клетки на таблицата на
+ * атрибутите и завършват с клетка с име NONE. При добавяне на нов атрибут
+ * блокът се копира в края на таблицата.
+ *
+ * Възлите, създадени от парсера, са номерирани в реда на документа и
+ * автоматичното им ID е firstAutoId + номерът; на добавените по-късно
+ * възли то се пази отделно. Атрибутът "id" е XML атрибутът, ако го има,
+ * иначе автоматичното ID - както при XMLElement.
+ *
+ * Колоните са XMLIntArray и XMLStringColumn, така че хранилището може
+ * да е изцяло извън heap-а - заедно с текста и стойностите на атрибутите.
+ * Индексът на XML ID е хеш таблица с отворено адресиране в две такива
+ * колони, без обект за всеки запис.
+ *
+ * Хранилище от XMLDocumentArena се използва отново за следващ документ:
+ * reset() го изпразва, без да освобождава масивите, и увеличава
+ * поколението му, така че изгледите към стария документ да не четат
+ * новия.
+ *
+ * Класът не е thread-safe.
+ */
+final class XMLNodeStore {
+    static final int NONE = -1;
+    private static final int DETACHED = -2;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final String ID = "id";
+    private static final String AUTO_ID_PREFIX = "auto_";
+
+    private final boolean offHeap;
+    private final XMLIntArray parents;
+    private final XMLIntArray firstChildren;
+    private final XMLIntArray nextSiblings;
+    private final XMLIntArray tags;
+    private final XMLIntArray attributeStarts;
+    private final XMLIntArray texts;
+    private int size;
+
+    private String[] names = new String[64];
+    private final Map<String, Integer> nameIndex = new HashMap<>();
+    private int nameCount;
+    private final int idName;
+
+    private final XMLIntArray attributeNames;
+    private final XMLStringColumn attributeValues;
+    private int attributeSize;
+    private boolean attributeBlockOpen;
+
+    private final XMLStringColumn textPool;
+    private int textSize;
+
+    private IDManager ids;
+    private int firstAutoId;
+    private int parsedSize;
+    private final Map<Integer, Integer> appendedAutoIds = new HashMap<>();
+    private XMLIntArray idSlots;
+    private XMLIntArray idHashes;
+    private int idCount;
+    private boolean xmlIdsComplete = true;
+    private int generation;
+
+    /**
+     * @param offHeap true, ако колоните трябва да са извън heap-а
+     */
+    XMLNodeStore(boolean offHeap) {
+        this.offHeap = offHeap;
+        parents = new XMLIntArray(INITIAL_CAPACITY, offHeap);
+        firstChildren = new XMLIntArray(INITIAL_CAPACITY, offHeap);
+        nextSiblings = new XMLIntArray(INITIAL_CAPACITY, offHeap);
+        tags = new XMLIntArray(INITIAL_CAPACITY, offHeap);
+        attributeStarts = new XMLIntArray(INITIAL_CAPACITY, offHeap);
+        texts = new XMLIntArray(INITIAL_CAPACITY, offHeap);
+        attributeNames = new XMLIntArray(INITIAL_CAPACITY, offHeap);
+        attributeValues = new XMLStringColumn(INITIAL_CAPACITY, offHeap);
+        textPool = new XMLStringColumn(INITIAL_CAPACITY, offHeap);
+        idSlots = new XMLIntArray(INITIAL_CAPACITY, offHeap);
+        idHashes = new XMLIntArray(INITIAL_CAPACITY, offHeap);
+        idName = name(ID);
+    }
+
+    /**
+     * Добавя възел като последно дете на parent (или корен при NONE).
+     *
+     * @param parent родителят
+     * @param previousSibling досегашното последно дете на parent или NONE
+     * @param tag каноничното име на тага
+     * @return номерът на новия възел
+     */
+    int add(int parent, int previousSibling, String tag) {
+        closeAttributeBlock();
+        if (size == parents.capacity()) {
+            resize(Math.max(INITIAL_CAPACITY, size * 2));
+        }
+        int node = size++;
+        parents.set(node, parent);
+        firstChildren.set(node, NONE);
+        nextSiblings.set(node, NONE);
+        tags.set(node, name(tag));
+        attributeStarts.set(node, NONE);
+        texts.set(node, NONE);
+        if (previousSibling != NONE) {
+            nextSiblings.set(previousSibling, node);
+        } else if (parent != NONE) {
+            firstChildren.set(parent, node);
+        }
+        return node;
+    }
+
+    /**
+     * Добавя атрибут на последния добавен възел. Повтарящо се име заменя
+     * стойността, както при XMLElement.setAttribute().
+     */
+    void addAttribute(String name, String value) {
+        int symbol = name(name);
+        int existing = openAttribute(symbol);
+        if (existing != NONE) {
+            attributeValues.set(existing, value);
+            return;
+        }
+        appendAttribute(symbol, value);
+        if (symbol == idName) {
+            if (lookupId(value) == NONE) {
+                putId(value, size - 1);
+            }
+        }
+    }
+
+    /**
+     * Като addAttribute(name, value), но стойността е дадена като UTF-8
+     * байтовете [from, to) на utf8; извън heap-а те се копират, без да се
+     * създава String.
+     */
+    void addAttribute(String name, byte[] utf8, int from, int to) {
+        int symbol = name(name);
+        if (symbol == idName) {
+            addAttribute(name, new String(utf8, from, to - from, StandardCharsets.UTF_8));
+            return;
+        }
+        int slot = openAttribute(symbol);
+        if (slot == NONE) {
+            slot = appendAttribute(symbol, null);
+        }
+        attributeValues.set(slot, utf8, from, to);
+    }
+
+    /**
+     * Започва блока с атрибути на последния добавен възел, ако още не е
+     * започнат, и търси атрибута в него.
+     *
+     * @return клетката на атрибута или NONE
+     */
+    private int openAttribute(int symbol) {
+        if (attributeBlockOpen) {
+            for (int i = attributeStarts.get(size - 1); i < attributeSize; i++) {
+                if (attributeNames.get(i) == symbol) {
+                    return i;
+                }
+            }
+        } else {
+            attributeStarts.set(size - 1, attributeSize);
+            attributeBlockOpen = true;
+        }
+        return NONE;
+    }
+
+    /**
+     * Приключва изграждането: запазва в ids номерата на автоматичните ID на
+     * възлите и освобождава неизползваната част от масивите.
+     *
+     * @param ids генераторът на документа
+     */
+    void finish(IDManager ids) {
+        finish(ids, true);
+    }
+
+    /**
+     * Приключва изграждането.
+     *
+     * @param ids генераторът на документа
+     * @param trim false, ако капацитетът трябва да се запази за следващ
+     *             документ (хранилище от XMLDocumentArena)
+     */
+    void finish(IDManager ids, boolean trim) {
+        closeAttributeBlock();
+        this.ids = ids;
+        this.firstAutoId = ids.reserve(size);
+        this.parsedSize = size;
+        if (trim) {
+            resize(size);
+            attributeNames.resize(attributeSize);
+            attributeValues.resize(attributeSize);
+            textPool.resize(textSize);
+        }
+    }
+
+    /**
+     * Изпразва хранилището за нов документ. Масивите и таблицата с имената
+     * на таговете се запазват, така че документ със сходна форма не заделя
+     * нищо ново за тях.
+     */
+    void reset() {
+        attributeValues.clear(attributeSize);
+        textPool.clear(textSize);
+        idSlots.fill(0, idSlots.capacity(), 0);
+        size = 0;
+        attributeSize = 0;
+        attributeBlockOpen = false;
+        textSize = 0;
+        ids = null;
+        firstAutoId = 0;
+        parsedSize = 0;
+        appendedAutoIds.clear();
+        idCount = 0;
+        xmlIdsComplete = true;
+        generation++;
+    }
+
+    /**
+     * @return генераторът на автоматичните ID на документа в хранилището
+     */
+    IDManager ids() {
+        return ids;
+    }
+
+    /**
+     * @return броят на извикванията на reset(); изгледите го сравняват с
+     *         поколението, в което са създадени
+     */
+    int generation() {
+        return generation;
+    }
+
+    boolean isOffHeap() {
+        return offHeap;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int parent(int node) {
+        int parent = parents.get(node);
+        return parent == DETACHED ? NONE : parent;
+    }
+
+    int firstChild(int node) {
+        return firstChildren.get(node);
+    }
+
+    int nextSibling(int node) {
+        return nextSiblings.get(node);
+    }
+
+    String tag(int node) {
+        return names[tags.get(node)];
+    }
+
+    /**
+     * @return true, ако възелът е корен или е свързан с корена (не е изтрит)
+     */
+    boolean isAttached(int node) {
+        while (node != 0) {
+            node = parents.get(node);
+            if (node < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Добавя нов възел като последно дете на parent.
+     *
+     * @param autoId номерът на автоматичното ID на новия възел
+     * @return номерът на новия възел
+     */
+    int appendChild(int parent, String tag, int autoId) {
+        int last = NONE;
+        for (int child = firstChildren.get(parent); child != NONE; child = nextSiblings.get(child)) {
+            last = child;
+        }
+        int node = add(parent, last, tag);
+        appendedAutoIds.put(node, autoId);
+        return node;
+    }
+
+    /**
+     * Откача възела (заедно с поддървото му) от родителя му.
+     */
+    void detach(int node) {
+        int parent = parents.get(node);
+        if (parent < 0) {
+            return;
+        }
+        if (firstChildren.get(parent) == node) {
+            firstChildren.set(parent, nextSiblings.get(node));
+        } else {
+            int previous = firstChildren.get(parent);
+            while (nextSiblings.get(previous) != node) {
+                previous = nextSiblings.get(previous);
+            }
+            nextSiblings.set(previous, nextSiblings.get(node));
+        }
+        parents.set(node, DETACHED);
+        nextSiblings.set(node, NONE);
+    }
+
+    String text(int node) {
+        int text = texts.get(node);
+        return text == NONE ? null : textPool.get(text);
+    }
+
+    void setText(int node, String text) {
+        int index = texts.get(node);
+        if (text == null) {
+            if (index != NONE) {
+                textPool.set(index, null);
+                texts.set(node, NONE);
+            }
+            return;
+        }
+        textPool.set(textSlot(node), text);
+    }
+
+    /**
+     * Задава текста като UTF-8 байтовете [from, to) на utf8.
+     */
+    void setText(int node, byte[] utf8, int from, int to) {
+        textPool.set(textSlot(node), utf8, from, to);
+    }
+
+    private int textSlot(int node) {
+        int index = texts.get(node);
+        if (index == NONE) {
+            if (textSize == textPool.capacity()) {
+                textPool.resize(Math.max(INITIAL_CAPACITY, textSize * 2));
+            }
+            index = textSize++;
+            texts.set(node, index);
+        }
+        return index;
+    }
+
+    int autoId(int node) {
+        if (node < parsedSize) {
+            return firstAutoId + node;
+        }
+        return appendedAutoIds.get(node);
+    }
+
+    /**
+     * @return автоматичното ID на възела, както XMLElement.getId()
+     */
+    String id(int node) {
+        return AUTO_ID_PREFIX + autoId(node);
+    }
+
+    /**
+     * Намира първия свързан възел в реда на документа, чийто атрибут "id"
+     * е равен на id. Използва индекса на XML ID от парсера и номера в
+     * автоматичните ID; обхожда дървото само когато те не са достатъчни.
+     *
+     * @return номерът на възела или NONE
+     */
+    int findById(String id) {
+        int byXmlId = NONE;
+        int indexed = lookupId(id);
+        if (indexed != NONE && isAttached(indexed)) {
+            byXmlId = indexed;
+        } else if (indexed != NONE || !xmlIdsComplete) {
+            return scanForId(id);
+        }
+        int byAutoId = nodeForAutoId(id);
+        if (byAutoId != NONE && !(isAttached(byAutoId) && id.equals(attribute(byAutoId, ID)))) {
+            byAutoId = NONE;
+        }
+        if (byXmlId != NONE && byAutoId != NONE) {
+            return scanForId(id);
+        }
+        return byXmlId != NONE ? byXmlId : byAutoId;
+    }
+
+    private int nodeForAutoId(String id) {
+        if (!id.startsWith(AUTO_ID_PREFIX) || id.length() == AUTO_ID_PREFIX.length()
+                || id.length() > AUTO_ID_PREFIX.length() + 9) {
+            return NONE;
+        }
+        int autoId = 0;
+        for (int i = AUTO_ID_PREFIX.length(); i < id.length(); i++) {
+            int digit = id.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return NONE;
+            }
+            autoId = autoId * 10 + digit;
+        }
+        long node = (long) autoId - firstAutoId;
+        if (node >= 0 && node < parsedSize) {
+            return (int) node;
+        }
+        for (Map.Entry<Integer, Integer> entry : appendedAutoIds.entrySet()) {
+            if (entry.getValue() == autoId) {
+                return entry.getKey();
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Обхожда дървото в реда на документа и запомня намерения възел.
+     */
+    private int scanForId(String id) {
+        int node = 0;
+        while (node != NONE) {
+            if (id.equals(attribute(node, ID))) {
+                putId(id, node);
+                return node;
+            }
+            node = nextInDocumentOrder(node, 0);
+        }
+        removeId(id);
+        return NONE;
+    }
+
+    /**
+     * @return възелът от индекса на XML ID, чийто атрибут "id" е id, или NONE
+     */
+    private int lookupId(String id) {
+        int slot = idSlot(id);
+        return slot == NONE ? NONE : idSlots.get(slot) - 1;
+    }
+
+    /**
+     * Записва или заменя възела за id в индекса на XML ID.
+     */
+    private void putId(String id, int node) {
+        int slot = idSlot(id);
+        if (slot == NONE) {
+            if ((idCount + 1) * 2 > idSlots.capacity()) {
+                rehashIds(idSlots.capacity() * 2);
+            }
+            int hash = id.hashCode();
+            slot = freeIdSlot(hash);
+            idHashes.set(slot, hash);
+            idCount++;
+        }
+        idSlots.set(slot, node + 1);
+    }
+
+    /**
+     * Премахва id от индекса; следващите записи от веригата се преместват
+     * назад, за да не остават дупки при линейното пробване.
+     */
+    private void removeId(String id) {
+        int hole = idSlot(id);
+        if (hole == NONE) {
+            return;
+        }
+        int mask = idSlots.capacity() - 1;
+        for (int next = (hole + 1) & mask; idSlots.get(next) != 0; next = (next + 1) & mask) {
+            int home = spread(idHashes.get(next)) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                idSlots.set(hole, idSlots.get(next));
+                idHashes.set(hole, idHashes.get(next));
+                hole = next;
+            }
+        }
+        idSlots.set(hole, 0);
+        idCount--;
+    }
+
+    /**
+     * Клетките пазят номера на възела + 1 (0 е празна клетка), а ключът е
+     * текущият атрибут "id" на възела. Записи, чийто възел е сменил ID-то
+     * си, просто не съвпадат; затова тогава xmlIdsComplete е false.
+     *
+     * @return клетката на id или NONE
+     */
+    private int idSlot(String id) {
+        int hash = id.hashCode();
+        int mask = idSlots.capacity() - 1;
+        for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+            int entry = idSlots.get(slot);
+            if (entry == 0) {
+                return NONE;
+            }
+            if (idHashes.get(slot) == hash && id.equals(attribute(entry - 1, ID))) {
+                return slot;
+            }
+        }
+    }
+
+    private int freeIdSlot(int hash) {
+        int mask = idSlots.capacity() - 1;
+        int slot = spread(hash) & mask;
+        while (idSlots.get(slot) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehashIds(int capacity) {
+        XMLIntArray oldSlots = idSlots;
+        XMLIntArray oldHashes = idHashes;
+        idSlots = new XMLIntArray(capacity, offHeap);
+        idHashes = new XMLIntArray(capacity, offHeap);
+        for (int i = 0; i < oldSlots.capacity(); i++) {
+            int entry = oldSlots.get(i);
+            if (entry != 0) {
+                int slot = freeIdSlot(oldHashes.get(i));
+                idSlots.set(slot, entry);
+                idHashes.set(slot, oldHashes.get(i));
+            }
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @return следващият възел в реда на документа в поддървото на root или NONE
+     */
+    int nextInDocumentOrder(int node, int root) {
+        if (firstChildren.get(node) != NONE) {
+            return firstChildren.get(node);
+        }
+        while (node != root) {
+            if (nextSiblings.get(node) != NONE) {
+                return nextSiblings.get(node);
+            }
+            node = parents.get(node);
+        }
+        return NONE;
+    }
+
+    /**
+     * @return стойността на атрибута; за "id" без XML атрибут - автоматичното ID
+     */
+    String attribute(int node, String name) {
+        Integer symbol = nameIndex.get(name);
+        if (symbol != null) {
+            int slot = findAttribute(node, symbol);
+            if (slot != NONE) {
+                return attributeValues.get(slot);
+            }
+        }
+        return ID.equals(name) ? id(node) : null;
+    }
+
+    void setAttribute(int node, String name, String value) {
+        int symbol = name(name);
+        int slot = findAttribute(node, symbol);
+        if (slot != NONE) {
+            attributeValues.set(slot, value);
+        } else {
+            int start = attributeStarts.get(node);
+            attributeStarts.set(node, attributeSize);
+            if (start != NONE) {
+                for (int i = start; attributeNames.get(i) != NONE; i++) {
+                    appendAttribute(attributeNames.get(i), attributeValues.get(i));
+                    attributeValues.set(i, null);
+                }
+            }
+            appendAttribute(symbol, value);
+            appendAttribute(NONE, null);
+        }
+        if (symbol == idName) {
+            xmlIdsComplete = false;
+        }
+    }
+
+    /**
+     * Премахва XML атрибут. Автоматичното ID не може да се премахне.
+     *
+     * @return предишната стойност или null
+     */
+    String removeAttribute(int node, String name) {
+        Integer symbol = nameIndex.get(name);
+        int slot = symbol == null ? NONE : findAttribute(node, symbol);
+        if (slot == NONE) {
+            return null;
+        }
+        String value = attributeValues.get(slot);
+        for (int i = slot; attributeNames.get(i) != NONE; i++) {
+            attributeNames.set(i, attributeNames.get(i + 1));
+            attributeValues.set(i, attributeValues.get(i + 1));
+        }
+        if (symbol == idName) {
+            xmlIdsComplete = false;
+        }
+        return value;
+    }
+
+    /**
+     * Копира атрибутите в map в същия ред, в който ги получава XMLElement:
+     * първо автоматичното ID, после атрибутите от документа.
+     */
+    Map<String, String> attributes(int node) {
+        Map<String, String> attributes = new XMLAttributeMap();
+        attributes.put(ID, id(node));
+        int start = attributeStarts.get(node);
+        if (start != NONE) {
+            for (int i = start; attributeNames.get(i) != NONE; i++) {
+                attributes.put(names[attributeNames.get(i)], attributeValues.get(i));
+            }
+        }
+        return attributes;
+    }
+
+    private int findAttribute(int node, int symbol) {
+        int start = attributeStarts.get(node);
+        if (start == NONE) {
+            return NONE;
+        }
+        for (int i = start; attributeNames.get(i) != NONE; i++) {
+            if (attributeNames.get(i) == symbol) {
+                return i;
+            }
+        }
+        return NONE;
+    }
+
+    private void closeAttributeBlock() {
+        if (attributeBlockOpen) {
+            appendAttribute(NONE, null);
+            attributeBlockOpen = false;
+        }
+    }
+
+    private int appendAttribute(int symbol, String value) {
+        if (attributeSize == attributeNames.capacity()) {
+            int capacity = Math.max(INITIAL_CAPACITY, attributeSize * 2);
+            attributeNames.resize(capacity);
+            attributeValues.resize(capacity);
+        }
+        attributeNames.set(attributeSize, symbol);
+        attributeValues.set(attributeSize, value);
+        return attributeSize++;
+    }
+
+    /**
+     * @return номерът на каноничното име в таблицата на имената
+     */
+    private int name(String name) {
+        Integer symbol = nameIndex.get(name);
+        if (symbol != null) {
+            return symbol;
+        }
+        if (nameCount == names.length) {
+            names = Arrays.copyOf(names, nameCount * 2);
+        }
+        names[nameCount] = name.intern();
+        nameIndex.put(names[nameCount], nameCount);
+        return nameCount++;
+    }
+
+    private void resize(int capacity) {
+        parents.resize(capacity);
+        firstChildren.resize(capacity);
+        nextSiblings.resize(capacity);
+        tags.resize(capacity);
+        attributeStarts.resize(capacity);
+        texts.resize(capacity);
+    }
+}
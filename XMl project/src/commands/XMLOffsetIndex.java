@@ -0,0 +1,193 @@
+package commands;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Индекс на позициите на всички елементи в документ, построен с едно
+ * обхождане на XMLEventCursor, без да се декодират имена, атрибути и текст.
+ *
+ * Елементите се номерират в реда на отварящите им тагове (pre-order), така
+ * че децата на елемент i започват от i + 1, а поддървото му свършва преди
+ * subtreeEnd(i). За всеки елемент се пазят четири числа:
+ * - началото на отварящия таг
+ * - началото и краят на съдържанието между отварящия и затварящия таг
+ * - номерът след последния наследник
+ *
+ * cursor(), readAttributes() и tagName() използват общ курсор, буфер и
+ * таблица на символите и не са thread-safe; LazyXMLElement ги вика в
+ * synchronized (index).
+ */
+final class XMLOffsetIndex {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final ByteBuffer document;
+    private int[] starts = new int[INITIAL_CAPACITY];
+    private int[] contentStarts = new int[INITIAL_CAPACITY];
+    private int[] contentEnds = new int[INITIAL_CAPACITY];
+    private int[] subtreeEnds = new int[INITIAL_CAPACITY];
+    private int size;
+    private final XMLSymbolTable symbols = new XMLSymbolTable();
+    private byte[] nameBuffer = new byte[64];
+    private XMLEventCursor fragmentCursor;
+
+    private XMLOffsetIndex(ByteBuffer document) {
+        this.document = document;
+    }
+
+    /**
+     * Обхожда документа и записва позициите на елементите му.
+     * Проверката за добре формиран XML е същата като при SINGLE_PASS.
+     *
+     * @param document целият документ; индекс 0 е началото му
+     * @return индексът
+     * @throws IOException ако XML не е добре форматиран
+     */
+    static XMLOffsetIndex build(ByteBuffer document) throws IOException {
+        XMLOffsetIndex index = new XMLOffsetIndex(document);
+        XMLEventCursor cursor = new XMLEventCursor(document);
+        int[] open = new int[32];
+        int depth = 0;
+        while (true) {
+            switch (cursor.next()) {
+                case START_ELEMENT:
+                    if (depth == open.length) {
+                        open = Arrays.copyOf(open, depth * 2);
+                    }
+                    open[depth++] = index.add(cursor.getMarkupStart(), cursor.getMarkupEnd());
+                    break;
+                case END_ELEMENT:
+                    index.close(open[--depth], cursor.getMarkupStart());
+                    break;
+                case END_DOCUMENT:
+                    return index;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private int add(int start, int contentStart) {
+        if (size == starts.length) {
+            int capacity = size * 2;
+            starts = Arrays.copyOf(starts, capacity);
+            contentStarts = Arrays.copyOf(contentStarts, capacity);
+            contentEnds = Arrays.copyOf(contentEnds, capacity);
+            subtreeEnds = Arrays.copyOf(subtreeEnds, capacity);
+        }
+        starts[size] = start;
+        contentStarts[size] = contentStart;
+        return size++;
+    }
+
+    /**
+     * При самозатварящ се таг курсорът не сканира нов токен, така че
+     * началото на "затварящия" таг съвпада с началото на отварящия.
+     */
+    private void close(int element, int closeStart) {
+        contentEnds[element] = closeStart == starts[element] ? contentStarts[element] : closeStart;
+        subtreeEnds[element] = size;
+    }
+
+    /**
+     * @return броят на елементите в документа
+     */
+    int size() {
+        return size;
+    }
+
+    ByteBuffer document() {
+        return document;
+    }
+
+    int start(int element) {
+        return starts[element];
+    }
+
+    /**
+     * @return позицията непосредствено след '&gt;' на отварящия таг
+     */
+    int contentStart(int element) {
+        return contentStarts[element];
+    }
+
+    /**
+     * @return позицията след края на затварящия таг (или на самозатварящия се таг)
+     */
+    int end(int element) {
+        int contentEnd = contentEnds[element];
+        if (contentEnd == contentStarts[element] && document.get(contentEnd - 2) == '/') {
+            return contentEnd;
+        }
+        while (document.get(contentEnd) != '>') {
+            contentEnd++;
+        }
+        return contentEnd + 1;
+    }
+
+    /**
+     * @return номерът след последния наследник на елемента
+     */
+    int subtreeEnd(int element) {
+        return subtreeEnds[element];
+    }
+
+    boolean isLeaf(int element) {
+        return subtreeEnds[element] == element + 1;
+    }
+
+    /**
+     * Връща курсор върху байтовете [from, to) на документа. Курсорът е общ
+     * за индекса и е валиден до следващото извикване.
+     */
+    XMLEventCursor cursor(int from, int to) {
+        if (fragmentCursor == null) {
+            fragmentCursor = new XMLEventCursor(document, from, to);
+        } else {
+            fragmentCursor.reset(from, to);
+        }
+        return fragmentCursor;
+    }
+
+    /**
+     * Прочита атрибутите от отварящия таг на елемента и ги задава на target.
+     * Декларациите xmlns се пропускат, както при SINGLE_PASS.
+     *
+     * @param element номерът на елемента
+     * @param target елементът, който получава атрибутите
+     * @throws IOException ако тагът не е добре форматиран
+     */
+    void readAttributes(int element, XMLElement target) throws IOException {
+        XMLEventCursor cursor = cursor(starts[element], contentStarts[element]);
+        cursor.next();
+        for (int n = cursor.getAttributeCount(); n > 0; n--) {
+            cursor.next();
+            if (!cursor.isNamespaceDeclaration()) {
+                target.setAttribute(cursor.getAttributeName(), cursor.getAttributeValue());
+            }
+        }
+    }
+
+    /**
+     * Декодира името на тага направо от байтовете на отварящия таг.
+     * Имената се взимат от таблица на символите, така че са канонични.
+     */
+    String tagName(int element) {
+        int nameStart = starts[element] + 1;
+        int nameEnd = nameStart;
+        while (true) {
+            int c = document.get(nameEnd) & 0xFF;
+            if (c <= ' ' || c == '/' || c == '>') {
+                break;
+            }
+            nameEnd++;
+        }
+        int length = nameEnd - nameStart;
+        if (nameBuffer.length < length) {
+            nameBuffer = new byte[Math.max(length, nameBuffer.length * 2)];
+        }
+        document.get(nameStart, nameBuffer, 0, length);
+        return symbols.symbol(nameBuffer, 0, length);
+    }
+}
@@ -0,0 +1,49 @@
+package commands;
+
+import java.io.IOException;
+
+/**
+ * Грешка при парсване на XML, която пази реда и колоната на проблема.
+ * Наследява IOException, така че съществуващият код, който хваща
+ * IOException от XMLParser, продължава да работи без промяна.
+ *
+ * Пример:
+ * <pre>
+ * try {
+ *     parser.parseXML("data.xml");
+ * } catch (XMLParseException e) {
+ *     System.out.println(e.getLine() + ":" + e.getColumn());
+ * }
+ * </pre>
+ */
+public class XMLParseException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int line;
+    private final int column;
+
+    /**
+     * Създава нова грешка при парсване.
+     *
+     * @param message описание на проблема
+     * @param line номер на реда (започва от 1)
+     * @param column номер на колоната (започва от 1)
+     */
+    public XMLParseException(String message, int line, int column) {
+        super(message + " at line " + line + ", column " + column);
+        this.line = line;
+        this.column = column;
+    }
+
+    /**
+     * Връща реда, на който е открита грешката.
+     * @return номер на реда (започва от 1)
+     */
+    public int getLine() { return line; }
+
+    /**
+     * Връща колоната, на която е открита грешката.
+     * @return номер на колоната (започва от 1)
+     */
+    public int getColumn() { return column; }
+}
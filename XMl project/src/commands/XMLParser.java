@@ -1,7 +1,11 @@
 package commands;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.zip.GZIPInputStream;
 /**
  * Парсър за XML документи, който конвертира XML текст в дървовидна структура от XMLElement обекти.
  * Този парсър поддържа:
@@ -15,15 +19,21 @@ import java.util.*;
  * <pre>
  * XMLParser parser = new XMLParser();
  * XMLElement root = parser.parseXML("example.xml");
+ * XMLElement legacy = parser.parseXML("old.xml", ParseMode.LEGACY);
  * </pre>
  */
 public class XMLParser {
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
     /**
      * Парсва XML файл и връща коренния елемент на полученото дърво.
+     * Проверката за балансирани тагове се извършва в същото обхождане,
+     * в което се строи дървото (режим SINGLE_PASS).
      *
      * @param filename път до XML файла за парсване
      * @return коренен елемент на парснатото XML дърво
-     * @throws IOException ако файлът не може да бъде прочетен или съдържа невалиден XML
+     * @throws IOException ако файлът не може да бъде прочетен или съдържа невалиден XML;
+     *         при невалиден XML това е XMLParseException с ред и колона
      *
      * Пример:
      * <pre>
@@ -32,6 +42,204 @@ public class XMLParser {
      * </pre>
      */
     public XMLElement parseXML(String filename) throws IOException {
+        return parseXML(filename, ParseMode.SINGLE_PASS);
+    }
+    /**
+     * Парсва XML файл с избрания режим на парсване.
+     *
+     * @param filename път до XML файла за парсване
+     * @param mode режим на парсване
+     * @return коренен елемент на парснатото XML дърво
+     * @throws IOException ако файлът не може да бъде прочетен или съдържа невалиден XML
+     */
+    public XMLElement parseXML(String filename, ParseMode mode) throws IOException {
+        if (mode == ParseMode.PERSISTENT) {
+            return parseDocument(filename, mode).getRoot();
+        }
+        if (isGzip(filename)) {
+            return parseGzip(filename).getRoot();
+        }
+        if (mode == ParseMode.LEGACY) {
+            return parseLegacy(filename, new IDManager());
+        }
+        if (mode == ParseMode.MAPPED) {
+            try (XMLEventCursor cursor = XMLEventCursor.open(filename)) {
+                return new SinglePassXMLParser().parse(cursor);
+            }
+        }
+        if (mode == ParseMode.PARALLEL) {
+            return new ParallelXMLParser().parse(filename);
+        }
+        if (mode == ParseMode.LAZY) {
+            return new LazyXMLParser().parse(filename);
+        }
+        if (mode == ParseMode.COMPACT || mode == ParseMode.OFF_HEAP) {
+            return new CompactXMLParser(mode == ParseMode.OFF_HEAP).parseDocument(filename).getRoot();
+        }
+        return new SinglePassXMLParser(mode == ParseMode.SLICED).parse(ByteBuffer.wrap(Files.readAllBytes(Paths.get(filename))));
+    }
+    /**
+     * Парсва XML файл и връща документ с индекс от ID към елемент, който се
+     * попълва, докато се създават възлите. При LEGACY и LAZY индексът се
+     * попълва постепенно при търсене, а при COMPACT и OFF_HEAP търсенето
+     * използва самото компактно хранилище.
+     *
+     * Файлове, компресирани с gzip, се разпознават по сигнатурата си и се
+     * разархивират в паметта, докато се парсват, независимо от режима.
+     *
+     * @param filename път до XML файла за парсване
+     * @param mode режим на парсване
+     * @return документът с корена и индекса
+     * @throws IOException ако файлът не може да бъде прочетен или съдържа невалиден XML
+     */
+    public XMLDocument parseDocument(String filename, ParseMode mode) throws IOException {
+        if (mode == ParseMode.PERSISTENT) {
+            if (isGzip(filename)) {
+                XMLDocument parsed = parseGzip(filename);
+                return new PersistentXMLDocument(parsed.getRoot(), parsed.getIdManager());
+            }
+            IDManager ids = new IDManager();
+            ByteBuffer input = ByteBuffer.wrap(Files.readAllBytes(Paths.get(filename)));
+            return new PersistentXMLDocument(new SinglePassXMLParser().parse(new XMLEventCursor(input), ids), ids);
+        }
+        if (isGzip(filename)) {
+            return parseGzip(filename);
+        }
+        if (mode == ParseMode.MAPPED) {
+            try (XMLEventCursor cursor = XMLEventCursor.open(filename)) {
+                return new SinglePassXMLParser().parseDocument(cursor);
+            }
+        }
+        if (mode == ParseMode.PARALLEL) {
+            return new ParallelXMLParser().parseDocument(filename);
+        }
+        if (mode == ParseMode.COMPACT || mode == ParseMode.OFF_HEAP) {
+            return new CompactXMLParser(mode == ParseMode.OFF_HEAP).parseDocument(filename);
+        }
+        if (mode == ParseMode.SINGLE_PASS || mode == ParseMode.SLICED) {
+            return new SinglePassXMLParser(mode == ParseMode.SLICED).parseDocument(ByteBuffer.wrap(Files.readAllBytes(Paths.get(filename))));
+        }
+        if (mode == ParseMode.LAZY) {
+            return new LazyXMLParser().parseDocument(filename);
+        }
+        IDManager ids = new IDManager();
+        return new XMLDocument(parseLegacy(filename, ids), ids);
+    }
+    /**
+     * Парсва XML файл като parseDocument(filename, mode), но в режимите
+     * COMPACT и OFF_HEAP хранилището се взема от арената, вместо да се
+     * заделя наново. В останалите режими арената не се използва.
+     *
+     * @param filename път до XML файла за парсване
+     * @param mode режим на парсване
+     * @param arena арената, която се преизползва между отварянията
+     * @return документът с корена и индекса
+     * @throws IOException ако файлът не може да бъде прочетен или съдържа невалиден XML
+     */
+    public XMLDocument parseDocument(String filename, ParseMode mode, XMLDocumentArena arena) throws IOException {
+        if ((mode == ParseMode.COMPACT || mode == ParseMode.OFF_HEAP) && !isGzip(filename)) {
+            return new CompactXMLParser(mode == ParseMode.OFF_HEAP).parseDocument(filename, arena);
+        }
+        return parseDocument(filename, mode);
+    }
+    /**
+     * Обхожда XML файл и подава съдържанието му на handler, без да строи дърво.
+     * Използва същия курсор като режимите SINGLE_PASS и MAPPED, така че
+     * проверките за добре формиран XML са същите.
+     *
+     * @param filename път до XML файла за обхождане
+     * @param handler получател на събитията
+     * @throws IOException ако файлът не може да бъде прочетен или съдържа невалиден XML
+     *
+     * Пример:
+     * <pre>
+     * parser.parseXML("big.xml", myHandler);
+     * </pre>
+     */
+    public void parseXML(String filename, XMLContentHandler handler) throws IOException {
+        if (isGzip(filename)) {
+            XMLEventCursor cursor = XMLEventCursor.incremental();
+            try (InputStream in = new GZIPInputStream(new FileInputStream(filename), GZIP_BUFFER_SIZE)) {
+                byte[] chunk = new byte[GZIP_BUFFER_SIZE];
+                int n;
+                while ((n = in.read(chunk)) != -1) {
+                    cursor.feed(ByteBuffer.wrap(chunk, 0, n));
+                    parse(cursor, handler);
+                }
+            }
+            cursor.endOfInput();
+            parse(cursor, handler);
+            return;
+        }
+        try (XMLEventCursor cursor = XMLEventCursor.open(filename)) {
+            parse(cursor, handler);
+        }
+    }
+    /**
+     * Подава на handler всички оставащи събития на курсора.
+     * Използват се изгледите на курсора, така че не се заделя памет за всяко събитие.
+     * При инкрементален курсор методът се връща, когато курсорът поиска още
+     * вход; след feed() може да се извика отново и продължава от същото място.
+     *
+     * @param cursor курсор, позициониран преди първото събитие
+     * @param handler получател на събитията
+     * @throws IOException ако XML не е добре форматиран
+     */
+    public void parse(XMLEventCursor cursor, XMLContentHandler handler) throws IOException {
+        while (true) {
+            switch (cursor.next()) {
+                case START_ELEMENT:
+                    handler.startElement(cursor.getNameChars());
+                    break;
+                case ATTRIBUTE:
+                    handler.attribute(cursor.getAttributeNameChars(), cursor.getAttributeValueChars());
+                    break;
+                case TEXT:
+                    handler.characters(cursor.getTextChars());
+                    break;
+                case END_ELEMENT:
+                    handler.endElement(cursor.getNameChars());
+                    break;
+                case NEED_INPUT:
+                case END_DOCUMENT:
+                    return;
+            }
+        }
+    }
+    /**
+     * Проверява дали файлът започва със сигнатурата на gzip.
+     *
+     * @param filename път до файла
+     * @return true, ако файлът е компресиран с gzip
+     * @throws IOException ако файлът не може да бъде прочетен
+     */
+    static boolean isGzip(String filename) throws IOException {
+        try (InputStream in = new FileInputStream(filename)) {
+            int b0 = in.read();
+            int b1 = in.read();
+            return b1 != -1 && (b0 | (b1 << 8)) == GZIPInputStream.GZIP_MAGIC;
+        }
+    }
+
+    /**
+     * Разархивира и парсва gzip файл на части, без временен файл.
+     */
+    private XMLDocument parseGzip(String filename) throws IOException {
+        try (InputStream in = new GZIPInputStream(new FileInputStream(filename), GZIP_BUFFER_SIZE)) {
+            return new SinglePassXMLParser().parseDocument(in);
+        }
+    }
+
+    /**
+     * Парсва XML файл с рекурсивния парсър: първо проверява баланса на таговете
+     * с отделно обхождане, след което строи дървото.
+     *
+     * @param filename път до XML файла за парсване
+     * @param ids генераторът на автоматичните ID на документа
+     * @return коренен елемент на парснатото XML дърво
+     * @throws IOException ако файлът не може да бъде прочетен или съдържа невалиден XML
+     */
+    private XMLElement parseLegacy(String filename, IDManager ids) throws IOException {
         StringBuilder content = new StringBuilder();
         try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
             String line;
@@ -52,41 +260,31 @@ public class XMLParser {
             throw new IOException("XML is malformed: tags are not properly balanced");
         }
 
-        return parseElement(xml);
+        return parseElement(xml, ids);
     }
     /**
      * Парсва XML елемент и неговите дъщерни елементи от даден низ.
      *
      * @param xml низът, съдържащ XML за парсване
+     * @param ids генераторът на автоматичните ID на документа
      * @return парснат XMLElement
      * @throws IOException ако XML не е добре форматиран
      *
      * Пример:
      * <pre>
-     * XMLElement element = parser.parseElement("&lt;person name=\"John\"&gt;John Doe&lt;/person&gt;");
+     * XMLElement element = parser.parseElement("&lt;person name=\"John\"&gt;John Doe&lt;/person&gt;", new IDManager());
      * </pre>
      */
-    private XMLElement parseElement(String xml) throws IOException {
+    private XMLElement parseElement(String xml, IDManager ids) throws IOException {
         int startTag = xml.indexOf('<') + 1;
         int endTag = xml.indexOf('>');
         String tagContent = xml.substring(startTag, endTag);
 
-        String tagNameFull = tagContent.split("\\s+")[0];
-
-        XMLElement element = new XMLElement(tagNameFull);
+        int nameEnd = nameEnd(tagContent, 0);
+        String tagNameFull = tagContent.substring(0, nameEnd);
 
-        if (tagContent.contains("=")) {
-            String attrPart = tagContent.substring(tagNameFull.length()).trim();
-            String[] attrs = attrPart.split("\\s+");
-            for (String attr : attrs) {
-                if (attr.contains("=") && !attr.startsWith("xmlns")) {
-                    String[] parts = attr.split("=");
-                    String name = parts[0];
-                    String value = parts[1].replace("\"", "");
-                    element.setAttribute(name, value);
-                }
-            }
-        }
+        XMLElement element = new XMLElement(tagNameFull.intern(), ids.next());
+        scanAttributes(tagContent, nameEnd, element);
 
         if (tagContent.endsWith("/")) {
             return element;
@@ -110,7 +308,7 @@ public class XMLParser {
                         throw new IOException("Malformed XML: unclosed child element");
                     }
                     String childXml = content.substring(childStart, childEnd + 1);
-                    XMLElement child = parseElement(childXml);
+                    XMLElement child = parseElement(childXml, ids);
                     child.setParent(element);
                     element.addChild(child);
                     currentPos = childEnd + 1;
@@ -121,6 +319,79 @@ public class XMLParser {
         }
         return element;
     }
+    /**
+     * Прочита атрибутите на отварящ таг с едно обхождане на символите му и ги
+     * записва направо в елемента. Стойностите могат да са в единични или
+     * двойни кавички и да съдържат интервали и '='. Атрибути без '=' и
+     * декларации xmlns се пропускат.
+     *
+     * @param tagContent съдържанието на тага между '&lt;' и '&gt;'
+     * @param from позицията след името на тага
+     * @param element елементът, в който се записват атрибутите
+     */
+    private void scanAttributes(String tagContent, int from, XMLElement element) {
+        int length = tagContent.length();
+        int i = from;
+        while (true) {
+            while (i < length && Character.isWhitespace(tagContent.charAt(i))) {
+                i++;
+            }
+            if (i >= length || tagContent.charAt(i) == '/') {
+                return;
+            }
+            int nameStart = i;
+            i = nameEnd(tagContent, i);
+            if (i == nameStart) {
+                i++;
+                continue;
+            }
+            int nameStop = i;
+            while (i < length && Character.isWhitespace(tagContent.charAt(i))) {
+                i++;
+            }
+            if (i >= length || tagContent.charAt(i) != '=') {
+                continue;
+            }
+            i++;
+            while (i < length && Character.isWhitespace(tagContent.charAt(i))) {
+                i++;
+            }
+            int valueStart;
+            int valueEnd;
+            char quote = i < length ? tagContent.charAt(i) : 0;
+            if (quote == '"' || quote == '\'') {
+                valueStart = i + 1;
+                valueEnd = tagContent.indexOf(quote, valueStart);
+                if (valueEnd == -1) {
+                    valueEnd = length;
+                }
+                i = valueEnd + 1;
+            } else {
+                valueStart = i;
+                while (i < length && !Character.isWhitespace(tagContent.charAt(i))) {
+                    i++;
+                }
+                valueEnd = i;
+            }
+            if (!tagContent.startsWith("xmlns", nameStart)) {
+                element.setAttribute(tagContent.substring(nameStart, nameStop), tagContent.substring(valueStart, valueEnd));
+            }
+        }
+    }
+    /**
+     * Намира края на име на таг или атрибут: първия празен символ, '/', '=' или '&gt;'.
+     */
+    private static int nameEnd(String text, int from) {
+        int i = from;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c) || c == '/' || c == '=' || c == '>') {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
     /**
      * Намира крайната позиция на дъщерен елемент, обработвайки правилно вложените елементи.
      * @param content XML съдържанието, в което се търси
@@ -185,8 +456,7 @@ public class XMLParser {
                 
                 tagStack.pop();
             } else if (!isSelfClosing) {
-                String tagWithAttributes = xml.substring(openBracket + 1, tagNameEnd);
-                String tagName = tagWithAttributes.split("\\s+")[0].trim();
+                String tagName = xml.substring(openBracket + 1, nameEnd(xml, openBracket + 1));
                 
                 tagStack.push(tagName);
             }
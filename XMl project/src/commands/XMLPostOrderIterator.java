@@ -0,0 +1,63 @@
+package commands;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Обхожда поддърво на XMLElement в post-order (първо децата отляво
+ * надясно, след това самият елемент) с явен стек вместо с рекурсия.
+ * Коренът на поддървото се връща последен.
+ */
+final class XMLPostOrderIterator implements Iterator<XMLElement> {
+    private static final int INITIAL_DEPTH = 16;
+
+    private XMLElement[] elements = new XMLElement[INITIAL_DEPTH];
+    private List<?>[] children = new List<?>[INITIAL_DEPTH];
+    private int[] next = new int[INITIAL_DEPTH];
+    private int depth;
+
+    /**
+     * @param root коренът на поддървото
+     */
+    XMLPostOrderIterator(XMLElement root) {
+        push(root);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return depth > 0;
+    }
+
+    @Override
+    public XMLElement next() {
+        if (depth == 0) {
+            throw new NoSuchElementException();
+        }
+        while (true) {
+            int top = depth - 1;
+            if (next[top] < children[top].size()) {
+                push((XMLElement) children[top].get(next[top]++));
+            } else {
+                XMLElement element = elements[top];
+                elements[top] = null;
+                children[top] = null;
+                depth--;
+                return element;
+            }
+        }
+    }
+
+    private void push(XMLElement element) {
+        if (depth == elements.length) {
+            elements = Arrays.copyOf(elements, depth * 2);
+            children = Arrays.copyOf(children, depth * 2);
+            next = Arrays.copyOf(next, depth * 2);
+        }
+        elements[depth] = element;
+        children[depth] = element.getChildren();
+        next[depth] = 0;
+        depth++;
+    }
+}
@@ -0,0 +1,142 @@
+package commands;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Масив от String с променлив размер. В heap режим е обикновен String[].
+ * Извън heap-а низовете се пазят като UTF-8 байтове в директни буфери
+ * (по CHUNK_SIZE байта), а за всеки елемент - позицията и дължината им;
+ * при get() се декодира нов String.
+ *
+ * При смяна на стойност извън heap-а новите байтове се добавят в края, а
+ * старите остават неизползвани до освобождаването на колоната или до
+ * clear(), след който буферите се попълват отначало.
+ */
+final class XMLStringColumn {
+    private static final int CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private String[] heap;
+    private XMLIntArray chunkIndexes;
+    private XMLIntArray offsets;
+    private XMLIntArray lengths;
+    private List<ByteBuffer> chunks;
+    private ByteBuffer current;
+    private int currentChunk = -1;
+    private int capacity;
+
+    /**
+     * @param capacity началният брой елементи
+     * @param offHeap true за съхранение извън heap-а
+     */
+    XMLStringColumn(int capacity, boolean offHeap) {
+        this.capacity = capacity;
+        if (offHeap) {
+            chunkIndexes = new XMLIntArray(capacity, true);
+            offsets = new XMLIntArray(capacity, true);
+            lengths = new XMLIntArray(capacity, true);
+            lengths.fill(0, capacity, -1);
+            chunks = new ArrayList<>();
+        } else {
+            heap = new String[capacity];
+        }
+    }
+
+    String get(int index) {
+        if (heap != null) {
+            return heap[index];
+        }
+        int length = lengths.get(index);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        chunks.get(chunkIndexes.get(index)).get(offsets.get(index), bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    void set(int index, String value) {
+        if (heap != null) {
+            heap[index] = value;
+            return;
+        }
+        if (value == null) {
+            lengths.set(index, -1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        reserve(index, bytes.length).put(bytes);
+    }
+
+    /**
+     * Задава стойност, дадена като UTF-8 байтовете [from, to) на utf8.
+     * Извън heap-а байтовете се копират направо, без да се създава String.
+     */
+    void set(int index, byte[] utf8, int from, int to) {
+        if (heap != null) {
+            heap[index] = new String(utf8, from, to - from, StandardCharsets.UTF_8);
+            return;
+        }
+        reserve(index, to - from).put(utf8, from, to - from);
+    }
+
+    /**
+     * Запазва length байта за елемента index в текущия буфер (или в
+     * следващия, ако не се побират) и връща буфера, позициониран на тях.
+     */
+    private ByteBuffer reserve(int index, int length) {
+        while (current == null || current.remaining() < length) {
+            if (currentChunk + 1 < chunks.size()) {
+                current = chunks.get(++currentChunk).clear();
+            } else {
+                current = ByteBuffer.allocateDirect(Math.max(CHUNK_SIZE, length));
+                chunks.add(current);
+                currentChunk = chunks.size() - 1;
+            }
+        }
+        chunkIndexes.set(index, currentChunk);
+        offsets.set(index, current.position());
+        lengths.set(index, length);
+        return current;
+    }
+
+    /**
+     * Изтрива първите size стойности, без да освобождава паметта. Извън
+     * heap-а следващите стойности се записват отново от първия буфер.
+     *
+     * @param size броят на използваните елементи
+     */
+    void clear(int size) {
+        if (heap != null) {
+            Arrays.fill(heap, 0, size, null);
+            return;
+        }
+        lengths.fill(0, size, -1);
+        current = null;
+        currentChunk = -1;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Сменя капацитета, като запазва първите min(capacity, стария капацитет) елемента.
+     */
+    void resize(int capacity) {
+        if (heap != null) {
+            heap = Arrays.copyOf(heap, capacity);
+        } else {
+            chunkIndexes.resize(capacity);
+            offsets.resize(capacity);
+            lengths.resize(capacity);
+            if (capacity > this.capacity) {
+                lengths.fill(this.capacity, capacity, -1);
+            }
+        }
+        this.capacity = capacity;
+    }
+}
@@ -0,0 +1,79 @@
+package commands;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Таблица на символите за имената на тагове и атрибути. Документите
+ * използват няколко десетки различни имена в милиони възли, затова всяко
+ * име се декодира веднъж и след това се връща същият String обект.
+ *
+ * Търсенето става направо по UTF-8 байтовете, без да се създава String.
+ * Новите имена се добавят чрез String.intern(), така че са канонични за
+ * цялата JVM: имена от различни таблици (например от частите при
+ * PARALLEL) и литерали в кода могат да се сравняват с ==.
+ *
+ * Таблицата не е thread-safe; всеки курсор има собствена.
+ */
+final class XMLSymbolTable {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private byte[][] keys = new byte[INITIAL_CAPACITY][];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private String[] symbols = new String[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * Връща каноничния String за байтовете [start, end) на масива.
+     *
+     * @param bytes UTF-8 байтовете на името
+     * @param start началото на името
+     * @param end краят на името
+     * @return каноничният String за името
+     */
+    String symbol(byte[] bytes, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        hash ^= hash >>> 16;
+        int mask = keys.length - 1;
+        int slot = hash & mask;
+        while (keys[slot] != null) {
+            if (hashes[slot] == hash && Arrays.equals(keys[slot], 0, keys[slot].length, bytes, start, end)) {
+                return symbols[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        String symbol = new String(bytes, start, end - start, StandardCharsets.UTF_8).intern();
+        keys[slot] = Arrays.copyOfRange(bytes, start, end);
+        hashes[slot] = hash;
+        symbols[slot] = symbol;
+        if (++size * 2 > keys.length) {
+            grow();
+        }
+        return symbol;
+    }
+
+    private void grow() {
+        byte[][] oldKeys = keys;
+        int[] oldHashes = hashes;
+        String[] oldSymbols = symbols;
+        int capacity = oldKeys.length * 2;
+        keys = new byte[capacity][];
+        hashes = new int[capacity];
+        symbols = new String[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = oldHashes[i] & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                hashes[slot] = oldHashes[i];
+                symbols[slot] = oldSymbols[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package commands;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Текст, който не е копиран от входа, а сочи байтовете [start, end) на
+ * масива с целия документ (UTF-8). Използва се в режим SLICED за
+ * текстовото съдържание и стойностите на атрибутите: String се създава
+ * едва когато стойността бъде поискана, и не се запазва, така че
+ * четенето на документа не дублира текста му в heap-а.
+ *
+ * Дали отрязъкът е само ASCII се проверява веднъж при създаването му; тогава
+ * length() и charAt() работят направо върху байтовете. Иначе length() и
+ * charAt() декодират текста веднъж и го пазят в отрязъка.
+ *
+ * Масивът трябва да не се променя, докато има отрязъци към него.
+ *
+ * Пример:
+ * <pre>
+ * XMLTextSlice title = XMLTextSlice.of(bytes, 12, 24);
+ * String text = title.toString(); // декодира байтовете
+ * </pre>
+ */
+final class XMLTextSlice implements CharSequence {
+    private final byte[] source;
+    private final int start;
+    private final int end;
+    private final boolean ascii;
+    private String decoded;
+
+    private XMLTextSlice(byte[] source, int start, int end, boolean ascii) {
+        this.source = source;
+        this.start = start;
+        this.end = end;
+        this.ascii = ascii;
+    }
+
+    /**
+     * @param source байтовете на документа
+     * @param start началото на текста
+     * @param end краят на текста (без него)
+     * @return отрязъкът
+     */
+    static XMLTextSlice of(byte[] source, int start, int end) {
+        return new XMLTextSlice(source, start, end, isAscii(source, start, end));
+    }
+
+    /**
+     * Премахва празните символи в двата края, както String.trim(). В UTF-8
+     * байтовете до ' ' са точно символите до ' ', затова се сравняват байтове;
+     * премахват се само ASCII байтове, така че флагът ascii не се променя.
+     *
+     * @return отрязък без празните символи в краищата (може да е празен)
+     */
+    XMLTextSlice trim() {
+        int from = start;
+        int to = end;
+        while (from < to && (source[from] & 0xFF) <= ' ') {
+            from++;
+        }
+        while (to > from && (source[to - 1] & 0xFF) <= ' ') {
+            to--;
+        }
+        return from == start && to == end ? this : new XMLTextSlice(source, from, to, ascii);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return start == end;
+    }
+
+    /**
+     * @param b ASCII символ
+     * @return true, ако символът се среща в отрязъка
+     */
+    boolean contains(int b) {
+        for (int i = start; i < end; i++) {
+            if (source[i] == b) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int length() {
+        return ascii ? end - start : decoded().length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (!ascii) {
+            return decoded().charAt(index);
+        }
+        if (index < 0 || index >= end - start) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + (end - start));
+        }
+        return (char) source[start + index];
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+        if (!ascii) {
+            return decoded().substring(from, to);
+        }
+        if (from < 0 || to > end - start || from > to) {
+            throw new IndexOutOfBoundsException("from " + from + ", to " + to + ", length " + (end - start));
+        }
+        return new XMLTextSlice(source, start + from, start + to, true);
+    }
+
+    /**
+     * Декодира байтовете в нов String.
+     */
+    @Override
+    public String toString() {
+        return new String(source, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private String decoded() {
+        if (decoded == null) {
+            decoded = toString();
+        }
+        return decoded;
+    }
+
+    private static boolean isAscii(byte[] source, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (source[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
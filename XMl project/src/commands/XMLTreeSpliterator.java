@@ -0,0 +1,124 @@
+package commands;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Обхожда поддърво на XMLElement в pre-order (елементът, след това децата
+ * му отляво надясно) с явен стек вместо с рекурсия, така че дълбочината
+ * на документа не е ограничена от стека на нишката.
+ *
+ * Стекът пази за всяко ниво списъка с децата и позицията в него. trySplit()
+ * отделя неизходените деца от най-плиткото ниво, което има поне две: новият
+ * spliterator получава началото (всичко до средата на тези деца), а този
+ * продължава с останалите поддървета. Така паралелен Stream получава
+ * големи, независими поддървета, а редът на елементите се запазва.
+ *
+ * Размерът на поддървото не е известен предварително; оценката започва от
+ * Long.MAX_VALUE и се разполовява при всяко разделяне.
+ */
+final class XMLTreeSpliterator implements Spliterator<XMLElement> {
+    private static final int INITIAL_DEPTH = 16;
+
+    private List<?>[] lists;
+    private int[] next;
+    private int[] end;
+    private int depth;
+    private long estimate;
+
+    /**
+     * @param root коренът на поддървото
+     */
+    XMLTreeSpliterator(XMLElement root) {
+        this(Collections.singletonList(root), 0, 1, Long.MAX_VALUE);
+    }
+
+    private XMLTreeSpliterator(List<XMLElement> roots, int from, int to, long estimate) {
+        lists = new List<?>[INITIAL_DEPTH];
+        next = new int[INITIAL_DEPTH];
+        end = new int[INITIAL_DEPTH];
+        lists[0] = roots;
+        next[0] = from;
+        end[0] = to;
+        depth = 1;
+        this.estimate = estimate;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super XMLElement> action) {
+        while (depth > 0) {
+            int top = depth - 1;
+            if (next[top] < end[top]) {
+                XMLElement element = (XMLElement) lists[top].get(next[top]++);
+                List<XMLElement> children = element.getChildren();
+                if (!children.isEmpty()) {
+                    push(children);
+                }
+                action.accept(element);
+                return true;
+            }
+            lists[top] = null;
+            depth--;
+        }
+        return false;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super XMLElement> action) {
+        while (tryAdvance(action)) {
+        }
+    }
+
+    @Override
+    public Spliterator<XMLElement> trySplit() {
+        for (int level = 0; level < depth; level++) {
+            int remaining = end[level] - next[level];
+            if (remaining >= 2) {
+                int middle = next[level] + remaining / 2;
+                @SuppressWarnings("unchecked")
+                List<XMLElement> siblings = (List<XMLElement>) lists[level];
+                XMLTreeSpliterator prefix = new XMLTreeSpliterator(siblings, next[level], middle, estimate >>> 1);
+                for (int deeper = level + 1; deeper < depth; deeper++) {
+                    prefix.push(lists[deeper], next[deeper], end[deeper]);
+                }
+                for (int deeper = level + 1; deeper < depth; deeper++) {
+                    lists[deeper] = null;
+                }
+                depth = level + 1;
+                next[level] = middle;
+                estimate >>>= 1;
+                return prefix;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        return estimate;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+
+    private void push(List<?> list) {
+        push(list, 0, list.size());
+    }
+
+    private void push(List<?> list, int from, int to) {
+        if (depth == lists.length) {
+            lists = Arrays.copyOf(lists, depth * 2);
+            next = Arrays.copyOf(next, depth * 2);
+            end = Arrays.copyOf(end, depth * 2);
+        }
+        lists[depth] = list;
+        next[depth] = from;
+        end[depth] = to;
+        depth++;
+    }
+}